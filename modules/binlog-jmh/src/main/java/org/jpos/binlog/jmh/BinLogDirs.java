@@ -0,0 +1,54 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Benchmark binlog directories.
+ *
+ * Directories are created under the <code>binlog.jmh.dir</code> system
+ * property (defaults to <code>java.io.tmpdir</code>), so the same suite can
+ * be run against tmpfs and disk, i.e.:
+ * <pre>
+ *   gradle jmh -Pjmh='-jvmArgsAppend -Dbinlog.jmh.dir=/dev/shm'
+ *   gradle jmh -Pjmh='-jvmArgsAppend -Dbinlog.jmh.dir=/var/tmp'
+ * </pre>
+ */
+class BinLogDirs {
+    private BinLogDirs() { }
+
+    static File create() throws IOException {
+        String base = System.getProperty("binlog.jmh.dir", System.getProperty("java.io.tmpdir"));
+        File dir = File.createTempFile("binlog-jmh-", "", new File(base));
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw write + force cost on the benchmark directory's file system, the
+ * lower bound for a durable BinLogWriter.add.
+ *
+ * @see BinLogDirs
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FsyncBenchmark {
+    @Param({ "64", "16384" })
+    public int recordSize;
+
+    private File dir;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ByteBuffer buf;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BinLogDirs.create();
+        raf = new RandomAccessFile(new File(dir, "fsync.dat"), "rw");
+        channel = raf.getChannel();
+        buf = ByteBuffer.allocate(recordSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        raf.close();
+        BinLogDirs.delete(dir);
+    }
+
+    @Benchmark
+    public void writeForceData() throws IOException {
+        buf.clear();
+        channel.write(buf);
+        channel.force(false);
+    }
+
+    @Benchmark
+    public void writeForceMetadata() throws IOException {
+        buf.clear();
+        channel.write(buf);
+        channel.force(true);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog.jmh;
+
+import org.jpos.binlog.BinLogReader;
+import org.jpos.binlog.BinLogWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential scan, standard vs memory-mapped BinLogReader.
+ *
+ * @see BinLogDirs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReaderBenchmark {
+    private static final int RECORDS = 100000;
+
+    @Param({ "64", "1024" })
+    public int recordSize;
+
+    @Param({ "4" })
+    public int segments;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BinLogDirs.create();
+        byte[] record = new byte[recordSize];
+        try (BinLogWriter w = new BinLogWriter(dir)) {
+            int perSegment = RECORDS / segments;
+            for (int i=0; i<RECORDS; i++) {
+                if (i > 0 && i % perSegment == 0)
+                    w.cutover();
+                w.add(record);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BinLogDirs.delete(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void standardScan(Blackhole bh) throws IOException {
+        try (BinLogReader r = new BinLogReader(dir)) {
+            while (r.hasNext())
+                bh.consume(r.next().get());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void mappedScan(Blackhole bh) throws IOException {
+        try (BinLogReader r = new BinLogReader(dir)) {
+            r.setMapped(true);
+            while (r.hasNext()) {
+                // touch the entry, so that its pages are actually read
+                ByteBuffer buf = r.next().buffer();
+                bh.consume(buf.get(buf.limit() - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog.jmh;
+
+import org.jpos.binlog.BinLog;
+import org.jpos.binlog.BinLogReader;
+import org.jpos.binlog.BinLogWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tail-follow latency: time from <code>add</code> until a follower
+ * blocked in <code>hasNext(timeout)</code> hands the entry back (subtract
+ * {@link WriterBenchmark} single thread latency to get the wake-up cost).
+ *
+ * @see BinLogDirs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TailFollowBenchmark {
+    private File dir;
+    private BinLogWriter writer;
+    private Thread follower;
+    private volatile boolean running;
+    private final SynchronousQueue<BinLog.Entry> handoff = new SynchronousQueue<>();
+    private final byte[] record = new byte[128];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BinLogDirs.create();
+        writer = new BinLogWriter(dir);
+        running = true;
+        follower = new Thread(this::follow, "binlog-jmh-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        running = false;
+        follower.interrupt();
+        follower.join();
+        writer.close();
+        BinLogDirs.delete(dir);
+    }
+
+    @Benchmark
+    public BinLog.Entry addAndFollow() throws Exception {
+        writer.add(record);
+        return handoff.take();
+    }
+
+    private void follow() {
+        try (BinLogReader reader = new BinLogReader(dir)) {
+            while (running) {
+                if (reader.hasNext(1000L))
+                    handoff.put(reader.next());
+            }
+        } catch (IOException | InterruptedException ignored) { }
+    }
+}
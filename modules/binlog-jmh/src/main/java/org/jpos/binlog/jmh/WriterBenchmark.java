@@ -0,0 +1,83 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog.jmh;
+
+import org.jpos.binlog.BinLog;
+import org.jpos.binlog.BinLogWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BinLogWriter.add throughput across record sizes, writer threads and
+ * group commit batch sizes.
+ *
+ * @see BinLogDirs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+    @Param({ "64", "1024", "16384" })
+    public int recordSize;
+
+    @Param({ "1", "256" })
+    public int maxBatchSize;
+
+    private File dir;
+    private BinLogWriter writer;
+    private byte[] record;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BinLogDirs.create();
+        writer = new BinLogWriter(dir);
+        writer.setMaxBatchSize(maxBatchSize);
+        record = new byte[recordSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.close();
+        BinLogDirs.delete(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BinLog.Ref add_1() throws IOException {
+        return writer.add(record);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BinLog.Ref add_4() throws IOException {
+        return writer.add(record);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public BinLog.Ref add_16() throws IOException {
+        return writer.add(record);
+    }
+}
@@ -18,14 +18,27 @@
 
 package org.jpos.binlog.cron;
 
+import org.jpos.binlog.BinLogCompressor;
 import org.jpos.binlog.BinLogWriter;
 import org.jpos.q2.QuartzJobSupport;
 
+import java.io.File;
+
+/**
+ * Cuts over the BinLog configured in the 'binlog' property, optionally
+ * compressing closed segments ('compress' property, default false).
+ */
 @SuppressWarnings("unused")
 public class CutoverJob extends QuartzJobSupport {
     public void run() {
-        try (BinLogWriter bl = new BinLogWriter (getConfiguration().get("binlog"))) {
+        String dir = getConfiguration().get("binlog");
+        try (BinLogWriter bl = new BinLogWriter (dir)) {
             bl.cutover();
+            if (getConfiguration().getBoolean("compress", false)) {
+                int n = new BinLogCompressor(new File(dir)).compressClosed();
+                if (n > 0)
+                    getLog().info ("compressed " + n + " binlog segment(s)");
+            }
         } catch (Throwable t) {
             getLog().error (t);
         }
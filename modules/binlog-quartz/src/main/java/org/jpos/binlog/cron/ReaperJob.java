@@ -0,0 +1,50 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog.cron;
+
+import org.jpos.binlog.BinLogReaper;
+import org.jpos.q2.QuartzJobSupport;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Reaps closed segments of the BinLog configured in the 'binlog' property.
+ *
+ * Optional properties: 'archive' (directory), 'max-size' (bytes) and
+ * 'max-age' (millis).
+ */
+@SuppressWarnings("unused")
+public class ReaperJob extends QuartzJobSupport {
+    public void run() {
+        try {
+            BinLogReaper reaper = new BinLogReaper(new File(getConfiguration().get("binlog")));
+            String archive = getConfiguration().get("archive", null);
+            if (archive != null)
+                reaper.setArchiveDir(new File(archive));
+            reaper.setMaxSize(getConfiguration().getLong("max-size", 0L));
+            reaper.setMaxAge(getConfiguration().getLong("max-age", 0L));
+            List<Integer> reaped = reaper.reap();
+            if (!reaped.isEmpty())
+                getLog().info ("reaped binlog segment(s) " + reaped);
+        } catch (Throwable t) {
+            getLog().error (t);
+        }
+    }
+}
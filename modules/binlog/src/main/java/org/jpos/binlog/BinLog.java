@@ -22,14 +22,17 @@ import org.jpos.iso.ISOUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 /**
  * General purpose binary log
@@ -47,12 +50,34 @@ import java.util.stream.Collectors;
  *   8 bytes Last element position
  *   4 bytes this log number
  *   4 bytes next log number
- * 232 bytes reserved
+ *   4 bytes format flags (version 2)
+ *   8 bytes last verified position (version 2, @see BinLogRecovery)
+ *   8 bytes block index position (version 2, compressed segments only)
+ *   8 bytes sequence number of the first element (version 2, 0 if unknown)
+ *   8 bytes sequence number of the next element (version 2, 0 if unknown)
+ *   8 bytes close time in millis (version 2, set by cutover, 0 if unknown)
+ * 188 bytes reserved
  *
  * Element:
  *   4 bytes Data length
+ *   4 bytes CRC32 of Data (only if FLAG_CRC32 is set)
  *   ...     Data
  * </pre>
+ *
+ * Version 1 segments (no flags, no CRC) are still readable and writable.
+ *
+ * Closed segments may be rewritten by {@link BinLogCompressor} into
+ * Deflate compressed blocks (FLAG_DEFLATE), followed by a block index.
+ * Entry positions (and hence {@link Ref}s) are not affected.
+ *
+ * Every element gets a sequence number (starting at 1 and carried over
+ * cutovers). A sparse NNNNNNNN.idx file next to each segment maps sequence
+ * numbers (and append time) to positions:
+ * <pre>
+ *   8 bytes sequence number
+ *   8 bytes element position
+ *   8 bytes append time (millis)
+ * </pre>
  */
 @SuppressWarnings("unused")
 
@@ -61,13 +86,24 @@ import java.util.stream.Collectors;
  */
 public abstract class BinLog implements AutoCloseable {
     private static final int FILE_MAGIC = 0xFC;
-    private static final int VERSION = 0x0001;
+    protected static final int VERSION = 0x0002;
     private static final int RESERVED_LEN = 232;
+    protected static final int VERSION_OFFSET = Integer.BYTES;
     private static final int MAX_CREATE_ATTEMPTS = 100;
     protected static final int STATUS_OFFSET = Integer.BYTES + Short.BYTES;
-    private static final int TAIL_OFFSET = STATUS_OFFSET + Short.BYTES;
+    protected static final int TAIL_OFFSET = STATUS_OFFSET + Short.BYTES;
     private static final int THIS_LOG_INDEX_OFFSET = TAIL_OFFSET + Long.BYTES;
     protected static final int NEXT_LOG_INDEX_OFFSET = THIS_LOG_INDEX_OFFSET + Integer.BYTES;
+    protected static final int FLAGS_OFFSET = NEXT_LOG_INDEX_OFFSET + Integer.BYTES;
+    protected static final int VERIFIED_OFFSET = FLAGS_OFFSET + Integer.BYTES;
+    protected static final int INDEX_POSITION_OFFSET = VERIFIED_OFFSET + Long.BYTES;
+    protected static final int FIRST_SEQ_OFFSET = INDEX_POSITION_OFFSET + Long.BYTES;
+    protected static final int NEXT_SEQ_OFFSET = FIRST_SEQ_OFFSET + Long.BYTES;
+    protected static final int CLOSE_TIME_OFFSET = NEXT_SEQ_OFFSET + Long.BYTES;
+    protected static final int SEQ_INDEX_INTERVAL = 1024;
+    protected static final int SEQ_INDEX_ENTRY = Long.BYTES * 3;
+    protected static final int FLAG_CRC32 = 0x0001;
+    protected static final int FLAG_DEFLATE = 0x0002;
     protected static final int INITIAL_INDEX = 1;
     private static final long CREATE_DELAY = 100L;
     protected static final long FIRST_EVENT_OFFSET = TAIL_OFFSET + RESERVED_LEN + Long.BYTES;
@@ -75,10 +111,13 @@ public abstract class BinLog implements AutoCloseable {
     private static Pattern filePattern = Pattern.compile("^[\\d]{8}.dat$");
     private String mode;
     private static Map<String,Object> mutexs = Collections.synchronizedMap(new HashMap<>());
+    private static Map<String,TailNotifier> notifiers = Collections.synchronizedMap(new HashMap<>());
     protected File dir;
     protected int fileNumber;
     protected RandomAccessFile raf;
     protected final Object mutex;
+    protected final TailNotifier notifier;
+    protected int flags;
 
     /**
      * Creates a new FileBinLog instance
@@ -90,6 +129,8 @@ public abstract class BinLog implements AutoCloseable {
     protected BinLog(File dir, boolean create) throws IOException {
         mutexs.putIfAbsent(dir.getAbsolutePath(), new Object());
         mutex = mutexs.get(dir.getAbsolutePath());
+        notifiers.putIfAbsent(dir.getAbsolutePath(), new TailNotifier(dir));
+        notifier = notifiers.get(dir.getAbsolutePath());
         if ((dir.exists() && !dir.isDirectory())|| (!dir.exists() && !create))
             throw new IOException ("Invalid directory '" + dir.toString() + "'");
         else
@@ -174,6 +215,7 @@ public abstract class BinLog implements AutoCloseable {
         File file = new File (dir, toFileName(fileNumber));
         RandomAccessFile raf = new RandomAccessFile(file, mode);
         verifyHeader(raf);
+        flags = readFlags(raf);
         return raf;
     }
 
@@ -224,24 +266,84 @@ public abstract class BinLog implements AutoCloseable {
         }
     }
 
+    /**
+     * @return per record header length (length plus optional CRC) in the current segment
+     */
+    protected int recordHeaderLength() {
+        return (flags & FLAG_CRC32) != 0 ? Integer.BYTES*2 : Integer.BYTES;
+    }
+
+    /**
+     * @return true if the current segment is block compressed
+     */
+    protected boolean isCompressed() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
+    /**
+     * @return true if records in the current segment carry a CRC
+     */
+    protected boolean hasCRC() {
+        return (flags & FLAG_CRC32) != 0;
+    }
+
+    protected static int readFlags(RandomAccessFile raf) throws IOException {
+        raf.seek(VERSION_OFFSET);
+        if (raf.readShort() < 2)
+            return 0;
+        raf.seek(FLAGS_OFFSET);
+        return raf.readInt();
+    }
+
+    protected static int crc (byte[] b, int offset, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, offset, len);
+        return (int) crc.getValue();
+    }
+
+    protected static int crc (ByteBuffer b) {
+        CRC32 crc = new CRC32();
+        crc.update(b.duplicate());
+        return (int) crc.getValue();
+    }
+
     protected int getFileNumber(String s) {
         return s != null ? Integer.parseInt(s.substring(0,8)) : 0;
     }
 
     protected String getLastClosed (File dir) throws IOException {
-        for (String s : getFilesReversed(dir)) {
-            if (isClosed(new File(dir, s)))
-                return s;
-        }
-        return null;
+        int last = SegmentDirectory.of(dir).lastClosed();
+        return last > 0 ? toFileName(last) : null;
     }
 
     protected String getFirst (File dir) {
-        return Arrays.stream(dir.list())
-                .filter(filePattern.asPredicate())
-                .sorted(String::compareTo)
-                .findFirst()
-                .orElse(null);
+        int first = SegmentDirectory.of(dir).first();
+        return first > 0 ? toFileName(first) : null;
+    }
+
+    /**
+     * @param raf segment
+     * @return first and next sequence numbers (0 if unknown)
+     * @throws IOException on error
+     */
+    protected static long[] readSequences(RandomAccessFile raf) throws IOException {
+        if (readVersion(raf) < 2)
+            return new long[] { 0L, 0L };
+        raf.seek(FIRST_SEQ_OFFSET);
+        return new long[] { raf.readLong(), raf.readLong() };
+    }
+
+    protected static int readVersion(RandomAccessFile raf) throws IOException {
+        raf.seek(VERSION_OFFSET);
+        return raf.readShort();
+    }
+
+    /**
+     * @param fileNumber segment
+     * @return segment's sparse sequence index file
+     */
+    protected File getIndexFile(int fileNumber) {
+        return new File(dir, String.format("%08d.idx", fileNumber));
     }
 
     private void verifyHeader(RandomAccessFile raf) throws IOException {
@@ -256,7 +358,7 @@ public abstract class BinLog implements AutoCloseable {
             if (pos < TAIL_OFFSET + Long.BYTES)
                 throw new IOException ("Invalid jPOS BinLog header " + fileNumber);
             long rafLength = raf.length();
-            if (pos > rafLength)
+            if (pos > rafLength && (readFlags(raf) & FLAG_DEFLATE) == 0)
                 throw new IOException ("Truncated jPOS BinLog file " + fileNumber + " (" + pos + "/" + rafLength + ")");
         }
     }
@@ -270,29 +372,12 @@ public abstract class BinLog implements AutoCloseable {
         lock.release();
     }
 
-    private List<String> getFiles(File dir) {
+    protected static List<String> getFiles(File dir) {
         return Arrays.stream(dir.list())
                 .filter(filePattern.asPredicate())
                 .sorted(String::compareTo)
                 .collect(Collectors.toList());
     }
-    private List<String> getFilesReversed(File dir) {
-        return Arrays.stream(dir.list())
-                .filter(filePattern.asPredicate())
-                .sorted((s1, s2) -> -s1.compareTo(s2))
-                .collect(Collectors.toList());
-    }
-
-    private boolean isClosed (File f) throws IOException {
-        if (f.exists()) {
-            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
-                raf.seek(STATUS_OFFSET);
-                return Status.valueOf(raf.readShort()) == Status.CLOSED;
-            }
-        }
-        return false;
-    }
-
     private void writeHeader (RandomAccessFile r, int i) throws IOException {
         r.seek(0);
         r.writeInt (FILE_MAGIC);
@@ -301,7 +386,13 @@ public abstract class BinLog implements AutoCloseable {
         r.writeLong(FIRST_EVENT_OFFSET);
         r.writeInt(i); // this Log Number
         r.writeInt(0);  // next Log Number
-        r.write (new byte[RESERVED_LEN]);
+        r.writeInt(FLAG_CRC32);
+        r.writeLong(FIRST_EVENT_OFFSET); // last verified position
+        r.writeLong(0L); // block index position
+        r.writeLong(1L); // first sequence number, updated by cutover
+        r.writeLong(1L); // next sequence number
+        r.writeLong(0L); // close time, updated by cutover
+        r.write (new byte[RESERVED_LEN - Integer.BYTES - Long.BYTES*5]);
     }
 
     public enum Status {
@@ -404,6 +495,7 @@ public abstract class BinLog implements AutoCloseable {
         private static final long serialVersionUID = 4841830838031550274L;
         private Ref ref;
         private byte[] data;
+        private transient ByteBuffer buffer;
 
         @SuppressWarnings("unused")
         private Entry() { }
@@ -417,6 +509,15 @@ public abstract class BinLog implements AutoCloseable {
             this.data = data;
         }
 
+        /**
+         * @param ref reference to this entry
+         * @param buffer entry's data (not copied)
+         */
+        public Entry(Ref ref, ByteBuffer buffer) {
+            this.ref = ref;
+            this.buffer = buffer;
+        }
+
         /**
          * @return this entry's binlog reference
          */
@@ -428,7 +529,23 @@ public abstract class BinLog implements AutoCloseable {
          * @return this entry's data
          */
         public byte[] get() {
+            if (data == null && buffer != null) {
+                data = new byte[buffer.remaining()];
+                buffer.duplicate().get(data);
+            }
             return data;
         }
+
+        /**
+         * @return read-only view of this entry's data, without copying it when read from a mapped binlog
+         */
+        public ByteBuffer buffer() {
+            return buffer != null ? buffer.asReadOnlyBuffer() : ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            get();
+            out.defaultWriteObject();
+        }
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Named consumer checkpoints, persisted next to the BinLog segments
+ * (one <code>name.ckpt</code> file per consumer).
+ *
+ * <pre>
+ * Checkpoint:
+ *   4 bytes file number
+ *   8 bytes offset
+ *   8 bytes timestamp (millis)
+ * </pre>
+ *
+ * @see BinLogReaper
+ */
+public class BinLogCheckpoints {
+    private static final String SUFFIX = ".ckpt";
+    private static Pattern namePattern = Pattern.compile("^[\\w.\\-]+$");
+    private final File dir;
+
+    /**
+     * @param dir binlog directory
+     */
+    public BinLogCheckpoints(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Atomically persists a consumer's checkpoint
+     * @param name consumer name
+     * @param ref reference to the consumer's next entry (@see BinLogReader#getNextRef())
+     * @throws IOException on error
+     */
+    public void save (String name, BinLog.Ref ref) throws IOException {
+        File file = getFile(name);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(ref.getFileNumber());
+            out.writeLong(ref.getOffset());
+            out.writeLong(System.currentTimeMillis());
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param name consumer name
+     * @return consumer's checkpoint, or null if none
+     * @throws IOException on error
+     */
+    public BinLog.Ref load (String name) throws IOException {
+        File file = getFile(name);
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return new BinLog.Ref(in.readInt(), in.readLong());
+        }
+    }
+
+    /**
+     * @param name consumer name
+     * @return true if the checkpoint existed
+     */
+    public boolean remove (String name) {
+        return getFile(name).delete();
+    }
+
+    /**
+     * @return all checkpoints, by consumer name
+     * @throws IOException on error
+     */
+    public Map<String,BinLog.Ref> getAll() throws IOException {
+        Map<String,BinLog.Ref> m = new TreeMap<>();
+        String[] files = dir.list();
+        if (files != null) {
+            for (String s : files) {
+                if (s.endsWith(SUFFIX)) {
+                    String name = s.substring(0, s.length() - SUFFIX.length());
+                    BinLog.Ref ref = load(name);
+                    if (ref != null)
+                        m.put(name, ref);
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the oldest checkpoint, or null if there are no checkpoints
+     * @throws IOException on error
+     */
+    public BinLog.Ref getMin() throws IOException {
+        BinLog.Ref min = null;
+        for (BinLog.Ref ref : getAll().values()) {
+            if (min == null || ref.getFileNumber() < min.getFileNumber() ||
+              (ref.getFileNumber() == min.getFileNumber() && ref.getOffset() < min.getOffset()))
+                min = ref;
+        }
+        return min;
+    }
+
+    private File getFile (String name) {
+        if (name == null || !namePattern.matcher(name).matches())
+            throw new IllegalArgumentException ("Invalid consumer name '" + name + "'");
+        return new File(dir, name + SUFFIX);
+    }
+}
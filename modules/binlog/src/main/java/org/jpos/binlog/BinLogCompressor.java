@@ -0,0 +1,171 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Rewrites closed BinLog segments into Deflate compressed blocks.
+ *
+ * Blocks hold whole entries, so a reader positioned at a {@link BinLog.Ref}
+ * only inflates the block containing it. Segments are rewritten into a
+ * temporary file which then atomically replaces the original one.
+ */
+public class BinLogCompressor {
+    public static final int DEFAULT_BLOCK_SIZE = 64*1024;
+    private final File dir;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * @param dir binlog directory
+     */
+    public BinLogCompressor(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param blockSize target uncompressed block size
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param level Deflater compression level
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Compresses all closed segments that are not yet compressed
+     * @return number of compressed segments
+     * @throws IOException on error
+     */
+    public int compressClosed() throws IOException {
+        int count = 0;
+        for (String s : BinLog.getFiles(dir)) {
+            if (compress(Integer.parseInt(s.substring(0,8))))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param fileNumber segment to compress
+     * @return true if the segment was compressed, false if it is still open or already compressed
+     * @throws IOException on error
+     */
+    public boolean compress(int fileNumber) throws IOException {
+        File file = new File(dir, String.format("%08d.dat", fileNumber));
+        File tmp = new File(dir, file.getName() + ".z.tmp");
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(BinLog.STATUS_OFFSET);
+            if (BinLog.Status.valueOf(in.readShort()) != BinLog.Status.CLOSED)
+                return false;
+            int flags = BinLog.readFlags(in);
+            if ((flags & BinLog.FLAG_DEFLATE) != 0)
+                return false;
+            int hlen = (flags & BinLog.FLAG_CRC32) != 0 ? Integer.BYTES*2 : Integer.BYTES;
+            in.seek(BinLog.TAIL_OFFSET);
+            long tail = in.readLong();
+            byte[] header = new byte[(int) BinLog.FIRST_EVENT_OFFSET];
+            in.seek(0L);
+            in.readFully(header);
+
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0L);
+                out.write(header);
+                Deflater deflater = new Deflater(level);
+                ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize + 1024);
+                List<long[]> index = new ArrayList<>();
+                byte[] buf = new byte[8192];
+                try {
+                    long pos = BinLog.FIRST_EVENT_OFFSET;
+                    long blockStart = pos;
+                    while (pos < tail) {
+                        in.seek(pos);
+                        int len = in.readInt();
+                        if (len < 0 || pos + hlen + len > tail)
+                            throw new IOException ("Invalid entry " + fileNumber + "/" + pos);
+                        byte[] entry = new byte[hlen + len];
+                        in.seek(pos);
+                        in.readFully(entry);
+                        block.write(entry);
+                        pos += entry.length;
+                        if (block.size() >= blockSize || pos >= tail) {
+                            index.add(deflate(deflater, block.toByteArray(), blockStart, out, buf));
+                            block.reset();
+                            blockStart = pos;
+                        }
+                    }
+                } finally {
+                    deflater.end();
+                }
+                long indexPosition = out.getFilePointer();
+                ByteArrayOutputStream ib = new ByteArrayOutputStream(Integer.BYTES + index.size() * BlockIndex.ENTRY_LENGTH);
+                DataOutputStream dos = new DataOutputStream(ib);
+                dos.writeInt(index.size());
+                for (long[] e : index) {
+                    dos.writeLong(e[0]);
+                    dos.writeLong(e[1]);
+                    dos.writeInt((int) e[2]);
+                    dos.writeInt((int) e[3]);
+                }
+                out.write(ib.toByteArray());
+                out.seek(BinLog.VERSION_OFFSET);
+                out.writeShort(BinLog.VERSION);
+                out.seek(BinLog.FLAGS_OFFSET);
+                out.writeInt(flags | BinLog.FLAG_DEFLATE);
+                out.writeLong(tail); // verified
+                out.writeLong(indexPosition);
+                out.getChannel().force(true);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private long[] deflate (Deflater deflater, byte[] raw, long start, RandomAccessFile out, byte[] buf) throws IOException {
+        long position = out.getFilePointer();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        long length = 0L;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+            length += n;
+        }
+        return new long[] { start, position, length, raw.length };
+    }
+}
@@ -20,16 +20,32 @@ package org.jpos.binlog;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Used to iterate over a binlog
+ *
+ * <p>In memory-mapped mode (see {@link #setMapped(boolean)}) segments are
+ * mapped read-only and entries are returned as {@link ByteBuffer} slices of
+ * the mapping (no per-entry copy), see {@link BinLog.Entry#buffer()}.</p>
  */
 public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
+    private static final long POLL_INTERVAL = 500L;
     private long iteratorPos;
     private boolean follow = true;
     private long cachedTailOffset = 0L;
+    private boolean mapped;
+    private BlockIndex index;
+    private int cachedBlock = -1;
+    private byte[] blockData;
+    private MappedByteBuffer map;
+    private int mapFileNumber;
+    private long nextSeq;
 
     /**
      * Instantiates a BinLogReader.
@@ -44,6 +60,7 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
         int first = getFileNumber(getFirst(dir));
         this.iteratorPos = FIRST_EVENT_OFFSET;
         raf = open (dir, fileNumber = (first == 0 ? INITIAL_INDEX : first));
+        nextSeq = readSequences(raf)[0];
     }
 
     /**
@@ -59,6 +76,8 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
         super (dir, false);
         this.iteratorPos = ref.getOffset();
         raf = open (dir, fileNumber = ref.getFileNumber());
+        if (iteratorPos == FIRST_EVENT_OFFSET)
+            nextSeq = readSequences(raf)[0];
     }
 
     /**
@@ -102,6 +121,24 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
         return follow;
     }
 
+    /**
+     * When mapped, closed segments are mapped once, and the open segment is
+     * remapped as its tail advances.
+     *
+     * @param mapped true to use memory-mapped, zero-copy reads
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        this.map = null;
+    }
+
+    /**
+     * @return true if this reader uses memory-mapped reads
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
     /**
      * @return reference to this reader's next binlog entry
      */
@@ -109,6 +146,87 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
         return new BinLog.Ref (fileNumber, iteratorPos);
     }
 
+    /**
+     * Persists this reader's next reference as a named consumer checkpoint
+     *
+     * @param consumer consumer name
+     * @throws IOException on error
+     * @see BinLogCheckpoints
+     */
+    public void checkpoint (String consumer) throws IOException {
+        new BinLogCheckpoints(dir).save(consumer, getNextRef());
+    }
+
+    /**
+     * @return sequence number of this reader's next binlog entry, 0 if unknown
+     */
+    public synchronized long getNextSequence() {
+        return nextSeq;
+    }
+
+    /**
+     * Positions this reader at a given entry.
+     *
+     * Uses the cached segment directory and the segment's sparse index, then
+     * scans forward at most {@link #SEQ_INDEX_INTERVAL} entries.
+     *
+     * @param seq entry's sequence number
+     * @return false if no segment holds the given sequence number
+     * @throws IOException on error
+     */
+    public boolean seek (long seq) throws IOException {
+        SegmentDirectory sd = SegmentDirectory.of(dir);
+        int n = sd.find(seq);
+        if (n == 0) {
+            sd.invalidate();
+            if ((n = sd.find(seq)) == 0)
+                return false;
+        }
+        long[] entry = searchIndex(n, 0, seq);
+        if (entry != null)
+            position (n, entry[1], entry[0]);
+        else
+            position (n, FIRST_EVENT_OFFSET, sd.sequences(n)[0]);
+        while (nextSeq < seq && hasNext())
+            next();
+        return nextSeq == seq;
+    }
+
+    /**
+     * Positions this reader at, or shortly before (at most {@link #SEQ_INDEX_INTERVAL}
+     * entries), the first entry appended at or after a given time.
+     *
+     * @param millis time in millis
+     * @return false if the binlog is empty
+     * @throws IOException on error
+     */
+    public boolean seekTime (long millis) throws IOException {
+        int[] segments = SegmentDirectory.of(dir).segments();
+        if (segments.length == 0)
+            return false;
+        int lo = 0;
+        int hi = segments.length - 1;
+        int n = segments[0];
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long[] first = searchIndex(segments[mid], 0, Long.MAX_VALUE, true);
+            if (first == null && mid == segments.length - 1) {
+                hi = mid - 1;       // open segment, no entries (or not indexed) yet
+            } else if (first == null || first[2] < millis) {
+                n = segments[mid];  // legacy segments (no index) precede indexed ones
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long[] entry = searchIndex(n, 2, millis - 1);
+        if (entry != null)
+            position (n, entry[1], entry[0]);
+        else
+            position (n, FIRST_EVENT_OFFSET, SegmentDirectory.of(dir).sequences(n)[0]);
+        return true;
+    }
+
     @Override
     public boolean hasNext() {
         try {
@@ -118,6 +236,7 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
             if (iteratorPos >= cachedTailOffset && follow && checkCutover(false)) {
                 iteratorPos = FIRST_EVENT_OFFSET;
                 cachedTailOffset = readTailOffset(raf);
+                nextSeq = readSequences(raf)[0];
             }
             return iteratorPos < cachedTailOffset;
         } catch (IOException e) {
@@ -132,12 +251,17 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
      */
     public boolean hasNext(long timeout) {
         long end = System.currentTimeMillis() + timeout;
-        while (System.currentTimeMillis() < end) {
-            if (hasNext()) {
+        for (;;) {
+            long seen = notifier.getVersion();
+            if (hasNext())
                 return true;
-            }
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0L)
+                break;
             try {
-                Thread.sleep(50L);
+                // in-process writers and the directory watcher signal tail updates,
+                // the poll interval only covers missed cross-process events
+                notifier.await(seen, Math.min(wait, POLL_INTERVAL));
             } catch (InterruptedException e) {
                 break;
             }
@@ -147,11 +271,22 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
 
     @Override
     public BinLog.Entry next() {
-        byte[] ev;
         long pos = iteratorPos;
         try {
-            ev = read(iteratorPos);
-            iteratorPos += Integer.BYTES + ev.length;
+            if (mapped) {
+                ByteBuffer buf = readMapped(iteratorPos);
+                if (buf != null) {
+                    iteratorPos += recordHeaderLength() + buf.remaining();
+                    if (nextSeq > 0L)
+                        nextSeq++;
+                    return new BinLog.Entry(new BinLog.Ref(fileNumber, pos), buf);
+                }
+            }
+            byte[] ev = read(iteratorPos);
+            iteratorPos += recordHeaderLength() + ev.length;
+            if (nextSeq > 0L)
+                nextSeq++;
+            return new BinLog.Entry(new BinLog.Ref(fileNumber, pos), ev);
         } catch (IOException e) {
             long actualTailOffset = 0L;
             long size = 0L;
@@ -164,19 +299,157 @@ public class BinLogReader extends BinLog implements Iterator<BinLog.Entry> {
               String.format("Invalid jPOS BinLog content @%d:%d (%d/%d)", fileNumber, pos, actualTailOffset, size)
             );
         }
-        return new BinLog.Entry(new BinLog.Ref(fileNumber, pos), ev);
+    }
+
+    @Override
+    public void close() throws IOException {
+        map = null;
+        super.close();
+    }
+
+    /**
+     * @param pos entry position
+     * @return read-only slice of the mapped entry, or null if the entry lies beyond the mappable range
+     * @throws IOException on error
+     */
+    private ByteBuffer readMapped (long pos) throws IOException {
+        if (isCompressed())
+            return null;
+        int hlen = recordHeaderLength();
+        if (map == null || mapFileNumber != fileNumber || pos + hlen > map.limit()) {
+            if (!remap(pos + hlen))
+                return null;
+        }
+        int len = map.getInt((int) pos);
+        int start = (int) pos + hlen;
+        if (len < 0 || (long) start + len > map.limit()) {
+            if (len < 0 || !remap((long) start + len))
+                throw new IOException ("Error reading position " + pos + " length " + len);
+        }
+        ByteBuffer buf = map.duplicate();
+        buf.position(start);
+        buf.limit(start + len);
+        buf = buf.slice();
+        if (hasCRC() && crc(buf) != map.getInt((int) pos + Integer.BYTES))
+            throw new IOException ("CRC error reading position " + pos + " length " + len);
+        return buf;
+    }
+
+    /**
+     * Maps the current segment up to its tail offset.
+     * @param required minimum mapped size
+     * @return false if the required size can't be mapped
+     * @throws IOException on error
+     */
+    private boolean remap (long required) throws IOException {
+        long tail = readTailOffset(raf);
+        if (required > tail || tail > Integer.MAX_VALUE)
+            return false;
+        map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, tail);
+        mapFileNumber = fileNumber;
+        return true;
     }
 
     private byte[] read (long pos) throws IOException {
         int len = 0;
         try {
+            if (isCompressed())
+                return readCompressed(pos);
             raf.seek(pos);
             len = raf.readInt();
+            if (len >= 0 && pos + recordHeaderLength() + len > cachedTailOffset)
+                cachedTailOffset = readTailOffset(raf); // next() called without hasNext()
+            if (len < 0 || pos + recordHeaderLength() + len > cachedTailOffset)
+                throw new IOException ("Invalid length");
+            int expectedCRC = hasCRC() ? raf.readInt() : 0;
             byte[] buf = new byte[len];
-            raf.read(buf);
+            raf.readFully(buf);
+            if (hasCRC() && crc(buf, 0, len) != expectedCRC)
+                throw new IOException ("CRC error");
             return buf;
         } catch (IOException e) {
             throw new IOException ("Error reading position " + pos + " length " + len, e);
         }
     }
+
+    private byte[] readCompressed (long pos) throws IOException {
+        if (index == null || index.fileNumber != fileNumber) {
+            index = BlockIndex.read(raf, fileNumber);
+            cachedBlock = -1;
+        }
+        int b = index.find(pos);
+        if (b < 0)
+            throw new IOException ("Invalid compressed position");
+        if (b != cachedBlock) {
+            blockData = index.inflate(raf, b);
+            cachedBlock = b;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(blockData);
+        buf.position((int) (pos - index.start[b]));
+        int len = buf.getInt();
+        int expectedCRC = hasCRC() ? buf.getInt() : 0;
+        if (len < 0 || len > buf.remaining())
+            throw new IOException ("Invalid length");
+        byte[] data = new byte[len];
+        buf.get(data);
+        if (hasCRC() && crc(data, 0, len) != expectedCRC)
+            throw new IOException ("CRC error");
+        return data;
+    }
+
+    private void position (int n, long offset, long seq) throws IOException {
+        if (n != fileNumber) {
+            RandomAccessFile r = open(dir, n);
+            raf.close();
+            raf = r;
+            fileNumber = n;
+        }
+        iteratorPos = offset;
+        cachedTailOffset = 0L;
+        nextSeq = seq;
+    }
+
+    private long[] searchIndex (int n, int field, long value) throws IOException {
+        return searchIndex (n, field, value, false);
+    }
+
+    /**
+     * Binary search over a segment's sparse index.
+     *
+     * @param n segment
+     * @param field 0 (sequence) or 2 (time)
+     * @param value max value
+     * @param first true to return the first entry
+     * @return last entry whose field is &lt;= value (or first entry), null if none
+     * @throws IOException on error
+     */
+    private long[] searchIndex (int n, int field, long value, boolean first) throws IOException {
+        File f = getIndexFile(n);
+        if (!f.exists())
+            return null;
+        try (RandomAccessFile idx = new RandomAccessFile(f, "r")) {
+            long entries = idx.length() / SEQ_INDEX_ENTRY;
+            long found = -1L;
+            if (first) {
+                found = entries > 0 ? 0L : -1L;
+            } else {
+                long lo = 0L;
+                long hi = entries - 1;
+                while (lo <= hi) {
+                    long mid = (lo + hi) >>> 1;
+                    idx.seek(mid * SEQ_INDEX_ENTRY + field * Long.BYTES);
+                    if (idx.readLong() <= value) {
+                        found = mid;
+                        lo = mid + 1;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+            }
+            if (found < 0L)
+                return null;
+            idx.seek(found * SEQ_INDEX_ENTRY);
+            return new long[] { idx.readLong(), idx.readLong(), idx.readLong() };
+        }
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes (or archives) closed BinLog segments.
+ *
+ * A closed segment is reaped when every consumer checkpoint (see
+ * {@link BinLogCheckpoints}) is past it, or when it falls outside the
+ * configured size or age budget. The open segment is never reaped.
+ * A segment's age is measured from its close time (recorded at cutover),
+ * not from its modification time, which recovery and compression reset.
+ * With no checkpoints and no budget, nothing is reaped.
+ */
+public class BinLogReaper {
+    private final File dir;
+    private File archiveDir;
+    private long maxSize;
+    private long maxAge;
+
+    /**
+     * @param dir binlog directory
+     */
+    public BinLogReaper(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param archiveDir if not null, reaped segments are moved there instead of being deleted
+     */
+    public void setArchiveDir(File archiveDir) {
+        this.archiveDir = archiveDir;
+    }
+
+    /**
+     * @param maxSize max size in bytes of the closed segments kept, regardless of checkpoints (0 = unlimited)
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxAge max age in millis of the closed segments kept, regardless of checkpoints (0 = unlimited)
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return reaped segment numbers
+     * @throws IOException on error
+     */
+    public List<Integer> reap() throws IOException {
+        List<Integer> reaped = new ArrayList<>();
+        BinLog.Ref min = new BinLogCheckpoints(dir).getMin();
+        SegmentDirectory sd = SegmentDirectory.of(dir);
+        sd.invalidate();
+        int[] segments = sd.segments();
+        long now = System.currentTimeMillis();
+        long size = 0L;
+        boolean reapAll = false;
+        // newest to oldest, so that the size budget keeps the most recent segments
+        for (int i=segments.length-1; i>=0; i--) {
+            File f = new File(dir, String.format("%08d.dat", segments[i]));
+            long closeTime = getCloseTime(f);
+            if (closeTime < 0L)
+                continue;
+            size += f.length();
+            boolean consumed = min != null && segments[i] < min.getFileNumber();
+            boolean overBudget = (maxSize > 0L && size > maxSize) || (maxAge > 0L && now - closeTime > maxAge);
+            reapAll |= overBudget;
+            if (consumed || reapAll) {
+                reap(f);
+                reaped.add(segments[i]);
+            }
+        }
+        if (!reaped.isEmpty())
+            sd.invalidate();
+        return reaped;
+    }
+
+    private void reap (File f) throws IOException {
+        File idx = new File(dir, f.getName().replace(".dat", ".idx"));
+        if (archiveDir != null) {
+            archiveDir.mkdirs();
+            Files.move(f.toPath(), new File(archiveDir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (idx.exists())
+                Files.move(idx.toPath(), new File(archiveDir, idx.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            if (!f.delete() && f.exists())
+                throw new IOException ("Unable to delete " + f);
+            idx.delete();
+        }
+    }
+
+    /**
+     * @return segment's close time, -1 if still open. Segments closed
+     * before the close time was recorded fall back to their last index
+     * entry's append time, then to their modification time.
+     */
+    private long getCloseTime (File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(BinLog.STATUS_OFFSET);
+            if (BinLog.Status.valueOf(raf.readShort()) != BinLog.Status.CLOSED)
+                return -1L;
+            if (BinLog.readVersion(raf) >= 2) {
+                raf.seek(BinLog.CLOSE_TIME_OFFSET);
+                long t = raf.readLong();
+                if (t > 0L)
+                    return t;
+            }
+        }
+        File idx = new File(dir, f.getName().replace(".dat", ".idx"));
+        if (idx.length() >= BinLog.SEQ_INDEX_ENTRY) {
+            try (RandomAccessFile raf = new RandomAccessFile(idx, "r")) {
+                long len = raf.length();
+                raf.seek(len - len % BinLog.SEQ_INDEX_ENTRY - Long.BYTES);
+                return raf.readLong();
+            }
+        }
+        return f.lastModified();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Startup crash recovery.
+ *
+ * Validates every segment, in parallel, from its last verified position up
+ * to its tail, and truncates the segment at the first torn or corrupted
+ * record. Bytes past the tail (writes that never got their tail update)
+ * are discarded as well.
+ *
+ * Has to be run before writers are opened.
+ */
+public class BinLogRecovery {
+    private final File dir;
+    private boolean fullScan;
+
+    /**
+     * @param dir binlog directory
+     */
+    public BinLogRecovery(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * By default, records before a segment's last verified position are
+     * trusted (they were validated by a previous recovery).
+     *
+     * @param fullScan true to validate segments from their first record
+     */
+    public void setFullScan(boolean fullScan) {
+        this.fullScan = fullScan;
+    }
+
+    /**
+     * Recovers all segments using one thread per available processor
+     * @return truncated segments (file number to new tail position)
+     * @throws IOException on error
+     */
+    public Map<Integer,Long> recover() throws IOException {
+        return recover(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of segments recovered concurrently
+     * @return truncated segments (file number to new tail position)
+     * @throws IOException on error
+     */
+    public Map<Integer,Long> recover(int threads) throws IOException {
+        Map<Integer,Long> truncated = new TreeMap<>();
+        List<String> files = BinLog.getFiles(dir);
+        if (files.isEmpty())
+            return truncated;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (String s : files) {
+                File f = new File(dir, s);
+                results.add(executor.submit(() -> recover(f)));
+            }
+            for (int i=0; i<files.size(); i++) {
+                long pos = results.get(i).get();
+                if (pos >= 0L)
+                    truncated.put(Integer.parseInt(files.get(i).substring(0,8)), pos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException ("Recovery interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException ("Recovery failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return truncated;
+    }
+
+    /**
+     * @param f segment file
+     * @return new tail position, or -1 if the segment was not truncated
+     * @throws IOException on error
+     */
+    private long recover (File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileLock lock = raf.getChannel().lock()) {
+            int flags = BinLog.readFlags(raf);
+            if ((flags & BinLog.FLAG_DEFLATE) != 0)
+                return -1L; // compressed segments are immutable
+            boolean crc = (flags & BinLog.FLAG_CRC32) != 0;
+            int hlen = crc ? Integer.BYTES*2 : Integer.BYTES;
+            raf.seek(BinLog.TAIL_OFFSET);
+            long tail = raf.readLong();
+            long length = raf.length();
+            long pos = BinLog.FIRST_EVENT_OFFSET;
+            if (crc && !fullScan) {
+                raf.seek(BinLog.VERIFIED_OFFSET);
+                long verified = raf.readLong();
+                if (verified > pos && verified <= tail)
+                    pos = verified;
+            }
+            long end = Math.min(tail, length);
+            while (pos + hlen <= end) {
+                raf.seek(pos);
+                int len = raf.readInt();
+                if (len < 0 || pos + hlen + len > end)
+                    break;
+                if (crc) {
+                    int expected = raf.readInt();
+                    byte[] b = new byte[len];
+                    raf.readFully(b);
+                    if (BinLog.crc(b, 0, len) != expected)
+                        break;
+                }
+                pos += hlen + len;
+            }
+            boolean truncate = pos < tail;
+            if (truncate) {
+                raf.seek(BinLog.TAIL_OFFSET);
+                raf.writeLong(pos);
+            }
+            long[] seq = BinLog.readSequences(raf);
+            if (seq[0] > 0L) {
+                // tail and NEXT_SEQ are separate writes, either one may have been lost
+                long[] last = truncateIndex(f, pos);
+                long next = last != null ?
+                  last[0] + count(raf, hlen, last[1], pos) :
+                  seq[0] + count(raf, hlen, BinLog.FIRST_EVENT_OFFSET, pos);
+                if (next != seq[1]) {
+                    raf.seek(BinLog.NEXT_SEQ_OFFSET);
+                    raf.writeLong(next);
+                }
+            }
+            if (length > pos && pos > BinLog.FIRST_EVENT_OFFSET)
+                raf.setLength(pos); // discard torn writes past the tail
+            if (crc) {
+                raf.seek(BinLog.VERIFIED_OFFSET);
+                raf.writeLong(pos);
+            }
+            raf.getChannel().force(true);
+            return truncate ? pos : -1L;
+        }
+    }
+
+    private long count (RandomAccessFile raf, int hlen, long from, long tail) throws IOException {
+        long count = 0L;
+        for (long pos = from; pos < tail; count++) {
+            raf.seek(pos);
+            pos += hlen + raf.readInt();
+        }
+        return count;
+    }
+
+    /**
+     * Drops sparse index entries pointing past the tail
+     *
+     * @return last remaining index entry (sequence, offset, time), null if none
+     */
+    private long[] truncateIndex (File f, long tail) throws IOException {
+        File idxFile = new File(f.getParentFile(), f.getName().replace(".dat", ".idx"));
+        if (!idxFile.exists())
+            return null;
+        try (RandomAccessFile idx = new RandomAccessFile(idxFile, "rw")) {
+            long entries = idx.length() / BinLog.SEQ_INDEX_ENTRY;
+            long n = entries;
+            while (n > 0) {
+                idx.seek((n-1) * BinLog.SEQ_INDEX_ENTRY + Long.BYTES);
+                if (idx.readLong() < tail)
+                    break;
+                n--;
+            }
+            if (idx.length() != n * BinLog.SEQ_INDEX_ENTRY)
+                idx.setLength(n * BinLog.SEQ_INDEX_ENTRY);
+            if (n == 0)
+                return null;
+            idx.seek((n-1) * BinLog.SEQ_INDEX_ENTRY);
+            return new long[] { idx.readLong(), idx.readLong(), idx.readLong() };
+        }
+    }
+}
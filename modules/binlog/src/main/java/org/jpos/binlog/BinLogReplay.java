@@ -0,0 +1,269 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Parallel BinLog replay.
+ *
+ * Closed segments are read (and CRC checked, or inflated) in parallel, up
+ * to one segment per thread. Every segment being read feeds a bounded queue
+ * of decoded entries; queues are drained in segment order, so that entries
+ * are delivered either strictly in order, or in order per key (see
+ * {@link #replay(Function, Consumer)}), and the number of decoded entries
+ * waiting for delivery is bounded by the window, regardless of segment size.
+ * The open segment is replayed last, sequentially.
+ */
+public class BinLogReplay {
+    private final File dir;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_WINDOW = 8192;
+    private int window = DEFAULT_WINDOW;
+    private BinLog.Ref from;
+    private static final BinLog.Entry EOF = new BinLog.Entry(null, new byte[0]);
+
+    /**
+     * @param dir binlog directory
+     */
+    public BinLogReplay(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param threads number of decoding (and, when partitioned, delivery) threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException ("Invalid threads " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * @param window max number of decoded entries waiting for delivery, split across the segments being read
+     */
+    public void setWindow(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException ("Invalid window " + window);
+        this.window = window;
+    }
+
+    /**
+     * @param from first entry to replay (defaults to the first entry in the binlog)
+     */
+    public void setFrom(BinLog.Ref from) {
+        this.from = from;
+    }
+
+    /**
+     * Replays entries strictly in order, on the calling thread
+     *
+     * @param consumer entry consumer
+     * @return number of replayed entries
+     * @throws IOException on error
+     */
+    public long replay (Consumer<BinLog.Entry> consumer) throws IOException {
+        return run (consumer);
+    }
+
+    /**
+     * Replays entries partitioned by key: entries with the same key are
+     * delivered in order, by the same thread; different keys are delivered
+     * concurrently.
+     *
+     * @param keyExtractor entry's partition key
+     * @param consumer entry consumer (has to be thread-safe)
+     * @param <K> key type
+     * @return number of replayed entries
+     * @throws IOException on error
+     */
+    public <K> long replay (Function<BinLog.Entry,K> keyExtractor, Consumer<BinLog.Entry> consumer) throws IOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<BlockingQueue<BinLog.Entry>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i=0; i<threads; i++) {
+            BlockingQueue<BinLog.Entry> q = new ArrayBlockingQueue<>(1024);
+            Thread t = new Thread(() -> deliver(q, consumer, failure), "binlog-replay-" + i);
+            t.setDaemon(true);
+            t.start();
+            queues.add(q);
+            workers.add(t);
+        }
+        long count;
+        try {
+            count = run (e -> {
+                if (failure.get() != null)
+                    throw new IllegalStateException ("Replay failed", failure.get());
+                int p = Math.floorMod(keyExtractor.apply(e).hashCode(), threads);
+                try {
+                    queues.get(p).put(e);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException (ex);
+                }
+            });
+        } catch (IOException e) {
+            if (failure.get() != null)
+                throw new IOException ("Replay failed", failure.get());
+            throw e;
+        } finally {
+            try {
+                for (BlockingQueue<BinLog.Entry> q : queues)
+                    q.put(EOF);
+                for (Thread t : workers)
+                    t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure.get() != null)
+            throw new IOException ("Replay failed", failure.get());
+        return count;
+    }
+
+    private long run (Consumer<BinLog.Entry> consumer) throws IOException {
+        SegmentDirectory sd = SegmentDirectory.of(dir);
+        sd.invalidate();
+        int lastClosed = sd.lastClosed();
+        int[] segments = sd.segments();
+        int first = from != null ? from.getFileNumber() : sd.first();
+        long count = 0L;
+        int next = 0;
+
+        AtomicInteger decoders = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "binlog-decode-" + decoders.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Deque<Segment> pending = new ArrayDeque<>();
+            int capacity = Math.max(1, window / threads);
+            int i = 0;
+            while (i < segments.length && segments[i] < first)
+                i++;
+            for (;;) {
+                // segments are submitted in order, so the head one always has a thread
+                while (pending.size() < threads && i < segments.length && segments[i] <= lastClosed) {
+                    int n = segments[i++];
+                    long offset = from != null && n == from.getFileNumber() ? from.getOffset() : BinLog.FIRST_EVENT_OFFSET;
+                    BlockingQueue<BinLog.Entry> q = new ArrayBlockingQueue<>(capacity);
+                    pending.add(new Segment(q, executor.submit(() -> decode(n, offset, q))));
+                }
+                if (pending.isEmpty())
+                    break;
+                Segment segment = pending.poll();
+                for (BinLog.Entry e = segment.queue.take(); e != EOF; e = segment.queue.take()) {
+                    accept(consumer, e);
+                    count++;
+                }
+                segment.future.get();
+            }
+            if (i < segments.length)
+                next = segments[i];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException ("Replay interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException ("Replay failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (next > 0) {
+            // open segment (and any segment closed meanwhile)
+            long offset = from != null && next == from.getFileNumber() ? from.getOffset() : BinLog.FIRST_EVENT_OFFSET;
+            try (BinLogReader reader = new BinLogReader(dir, new BinLog.Ref(next, offset))) {
+                while (reader.hasNext()) {
+                    accept(consumer, reader.next());
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void accept (Consumer<BinLog.Entry> consumer, BinLog.Entry e) throws IOException {
+        try {
+            consumer.accept(e);
+        } catch (RuntimeException ex) {
+            throw new IOException ("Replay failed", ex);
+        }
+    }
+
+    /**
+     * Feeds a segment's entries to its queue, followed by EOF (also on error,
+     * but not when interrupted: the replay was abandoned and nobody is draining the queue)
+     */
+    private Void decode (int fileNumber, long offset, BlockingQueue<BinLog.Entry> q) throws IOException, InterruptedException {
+        boolean eof = true;
+        try (BinLogReader reader = new BinLogReader(dir, new BinLog.Ref(fileNumber, offset))) {
+            reader.setFollow(false);
+            reader.setMapped(true);
+            while (reader.hasNext())
+                q.put(reader.next());
+        } catch (InterruptedException e) {
+            eof = false;
+            throw e;
+        } finally {
+            if (eof)
+                q.put(EOF);
+        }
+        return null;
+    }
+
+    private void deliver (BlockingQueue<BinLog.Entry> q, Consumer<BinLog.Entry> consumer, AtomicReference<Throwable> failure) {
+        try {
+            for (BinLog.Entry e = q.take(); e != EOF; e = q.take()) {
+                if (failure.get() == null) {
+                    try {
+                        consumer.accept(e);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }
+        } catch (InterruptedException ignored) { }
+    }
+
+    private static class Segment {
+        final BlockingQueue<BinLog.Entry> queue;
+        final Future<Void> future;
+
+        Segment(BlockingQueue<BinLog.Entry> queue, Future<Void> future) {
+            this.queue = queue;
+            this.future = future;
+        }
+    }
+}
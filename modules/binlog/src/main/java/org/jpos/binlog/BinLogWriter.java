@@ -21,13 +21,54 @@ package org.jpos.binlog;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jpos.util.LogEvent;
+import org.jpos.util.LogSource;
+import org.jpos.util.Logger;
 
 /**
  * Used to append add records to a BinLog
+ *
+ * <p>Concurrent {@link #add(byte[])} callers are group-committed: the first
+ * caller writes all queued records as one contiguous batch, with a single
+ * tail update and a single pair of <code>force</code> calls, and
+ * acknowledges them together. See {@link #setMaxBatchSize(int)} and
+ * {@link #setMaxLinger(long)}.</p>
+ *
+ * <p>{@link #addAsync(byte[])} hands records to a dedicated writer thread
+ * through a bounded queue (see {@link #setAsyncCapacity(int)}); producers
+ * block only when the queue is full.</p>
+ *
+ * <p>Failures updating the sparse sequence index, which is only a hint,
+ * don't fail the (already durable) entries; they are reported to the
+ * writer's {@link Logger}, if any.</p>
  */
-public class BinLogWriter extends BinLog {
+public class BinLogWriter extends BinLog implements LogSource {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxLinger = 0L;
+    private final List<PendingAdd> queue = new ArrayList<>();
+    private final Object commitLock = new Object();
+    public static final int DEFAULT_ASYNC_CAPACITY = 8192;
+    private static final PendingAdd STOP = new PendingAdd(new byte[0]);
+    private int asyncCapacity = DEFAULT_ASYNC_CAPACITY;
+    private BlockingQueue<PendingAdd> asyncQueue;
+    private Thread asyncWriter;
+    private volatile boolean closed;
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private Logger logger;
+    private String realm;
+
     /**
      * Instantiates a BinLogWriter. Creates directory if necessary.
      *
@@ -60,26 +101,153 @@ public class BinLogWriter extends BinLog {
     }
 
     /**
-     * Adds an entry to the BinLog
+     * Adds an entry to the BinLog.
+     *
+     * The entry is durable by the time this method returns.
+     *
      * @param record entry's binary image
      * @return reference to this entry
      * @throws IOException on error
      */
     public BinLog.Ref add(byte[] record) throws IOException {
-        synchronized(mutex) {
-            checkCutover(true);
-            FileChannel channel = raf.getChannel();
-            try (FileLock lock = channel.lock()) {
-                long pos = readTailOffset(raf);
-                raf.seek(pos);
-                raf.writeInt(record.length);
-                raf.write(record);
-                channel.force(true);
-                writeTailOffset(pos + Integer.BYTES + record.length);
-                channel.force(false);
-                return new BinLog.Ref(fileNumber, pos);
+        PendingAdd p = new PendingAdd(record);
+        synchronized (queue) {
+            queue.add(p);
+            queue.notifyAll();
+        }
+        synchronized (commitLock) {
+            // unless a previous leader already committed our record, we lead
+            while (!p.done)
+                commit(drain());
+        }
+        if (p.exception != null)
+            throw new IOException (p.exception.getMessage(), p.exception);
+        return p.ref;
+    }
+
+    /**
+     * Asynchronously adds an entry to the BinLog.
+     *
+     * The returned future completes once the entry is durable. This call
+     * blocks while the async queue is full.
+     *
+     * @param record entry's binary image
+     * @return future reference to this entry
+     */
+    public CompletableFuture<BinLog.Ref> addAsync(byte[] record) {
+        PendingAdd p = new PendingAdd(record);
+        p.future = new CompletableFuture<>();
+        try {
+            // close() waits for producers blocked here, the writer thread keeps draining until then
+            closeLock.readLock().lockInterruptibly();
+            try {
+                if (closed)
+                    throw new IOException ("BinLog writer closed");
+                getAsyncQueue().put(p);
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            p.future.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.future.completeExceptionally(e);
+        }
+        return p.future;
+    }
+
+    /**
+     * Asynchronously adds the buffer's remaining bytes to the BinLog
+     * (the buffer's position is not modified).
+     *
+     * @param record entry's binary image
+     * @return future reference to this entry
+     */
+    public CompletableFuture<BinLog.Ref> addAsync(ByteBuffer record) {
+        byte[] b = new byte[record.remaining()];
+        record.duplicate().get(b);
+        return addAsync(b);
+    }
+
+    /**
+     * @param asyncCapacity async queue capacity, has to be set before the first {@link #addAsync(byte[])} call
+     */
+    public synchronized void setAsyncCapacity(int asyncCapacity) {
+        if (asyncCapacity < 1)
+            throw new IllegalArgumentException ("Invalid asyncCapacity " + asyncCapacity);
+        if (asyncQueue != null)
+            throw new IllegalStateException ("Async writer already started");
+        this.asyncCapacity = asyncCapacity;
+    }
+
+    /**
+     * @return async queue capacity
+     */
+    public int getAsyncCapacity() {
+        return asyncCapacity;
+    }
+
+    /**
+     * @param maxBatchSize maximum number of records written by a single group commit (1 disables group commit)
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException ("Invalid maxBatchSize " + maxBatchSize);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return maximum number of records written by a single group commit
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * A leader waits up to <code>maxLinger</code> millis for its batch to fill
+     * before committing it. Defaults to 0 (commit whatever is already queued).
+     *
+     * @param maxLinger max linger time in millis
+     */
+    public void setMaxLinger(long maxLinger) {
+        if (maxLinger < 0L)
+            throw new IllegalArgumentException ("Invalid maxLinger " + maxLinger);
+        this.maxLinger = maxLinger;
+    }
+
+    /**
+     * @return max linger time in millis
+     */
+    public long getMaxLinger() {
+        return maxLinger;
+    }
+
+    /**
+     * Closes this writer, waiting for pending asynchronous entries to be committed.
+     *
+     * @throws IOException on error
+     */
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        closeLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                closed = true;
+                t = asyncWriter;
             }
+        } finally {
+            closeLock.writeLock().unlock();
         }
+        if (t != null) {
+            try {
+                asyncQueue.put(STOP);
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.close();
     }
 
     /**
@@ -93,15 +261,204 @@ public class BinLogWriter extends BinLog {
             try (FileLock lock = channel.lock()) {
                 if (readStatus() != Status.OPEN)
                     throw new IOException ("BinLog not open");
+                long seq = readSequences(raf)[1];
                 RandomAccessFile newRaf = openOrCreateFile(dir, ++fileNumber);
+                if (seq > 0L) {
+                    // sequence numbers carry over
+                    newRaf.seek(FIRST_SEQ_OFFSET);
+                    newRaf.writeLong(seq);
+                    newRaf.writeLong(seq);
+                    newRaf.getChannel().force(false);
+                }
                 raf.seek(NEXT_LOG_INDEX_OFFSET);
                 raf.writeInt(fileNumber);
+                if (readVersion(raf) >= 2) {
+                    raf.seek(CLOSE_TIME_OFFSET);
+                    raf.writeLong(System.currentTimeMillis());
+                }
                 channel.force(false);
                 raf.seek(STATUS_OFFSET);
                 raf.writeShort(Status.CLOSED.intValue());
                 channel.force(false);
                 raf = newRaf;
+                SegmentDirectory.of(dir).invalidate();
+                notifier.signal();
+            }
+        }
+    }
+
+    private synchronized BlockingQueue<PendingAdd> getAsyncQueue() {
+        if (asyncQueue == null && !closed) {
+            asyncQueue = new ArrayBlockingQueue<>(asyncCapacity);
+            asyncWriter = new Thread(this::runAsyncWriter, "binlog-writer-" + dir.getName());
+            asyncWriter.setDaemon(true);
+            asyncWriter.start();
+        }
+        return asyncQueue;
+    }
+
+    private void runAsyncWriter() {
+        List<PendingAdd> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(asyncQueue.take());
+                asyncQueue.drainTo(batch, maxBatchSize - batch.size());
+                long end = System.currentTimeMillis() + maxLinger;
+                long wait;
+                while (batch.size() < maxBatchSize && batch.get(batch.size()-1) != STOP
+                  && (wait = end - System.currentTimeMillis()) > 0L) {
+                    PendingAdd p = asyncQueue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (p != null)
+                        batch.add(p);
+                }
+            } catch (InterruptedException e) {
+                stop = true;
+            }
+            if (batch.remove(STOP))
+                stop = true;
+            if (!batch.isEmpty()) {
+                synchronized (commitLock) {
+                    commit(batch);
+                }
+            }
+            batch.clear();
+        }
+        asyncQueue.drainTo(batch);
+        for (PendingAdd p : batch) {
+            if (p != STOP)
+                p.future.completeExceptionally(new IOException ("BinLog writer closed"));
+        }
+    }
+
+    private List<PendingAdd> drain() {
+        synchronized (queue) {
+            long end = System.currentTimeMillis() + maxLinger;
+            long wait;
+            while (queue.size() < maxBatchSize && (wait = end - System.currentTimeMillis()) > 0L) {
+                try {
+                    queue.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            int n = Math.min (queue.size(), maxBatchSize);
+            List<PendingAdd> batch = new ArrayList<>(queue.subList(0, n));
+            queue.subList(0, n).clear();
+            return batch;
+        }
+    }
+
+    private void commit (List<PendingAdd> batch) {
+        try {
+            synchronized(mutex) {
+                checkCutover(true);
+                FileChannel channel = raf.getChannel();
+                try (FileLock lock = channel.lock()) {
+                    long pos = readTailOffset(raf);
+                    long seq = readSequences(raf)[1];
+                    long now = System.currentTimeMillis();
+                    int hlen = recordHeaderLength();
+                    int len = 0;
+                    for (PendingAdd p : batch)
+                        len += hlen + p.record.length;
+                    ByteBuffer buf = ByteBuffer.allocate(len);
+                    ByteBuffer index = null;
+                    long offset = pos;
+                    for (PendingAdd p : batch) {
+                        p.ref = new BinLog.Ref(fileNumber, offset);
+                        if (seq > 0L) {
+                            if ((seq - 1) % SEQ_INDEX_INTERVAL == 0 || offset == FIRST_EVENT_OFFSET) {
+                                if (index == null)
+                                    index = ByteBuffer.allocate(SEQ_INDEX_ENTRY * (batch.size() / SEQ_INDEX_INTERVAL + 2));
+                                index.putLong(seq).putLong(offset).putLong(now);
+                            }
+                            seq++;
+                        }
+                        buf.putInt(p.record.length);
+                        if (hasCRC())
+                            buf.putInt(crc(p.record, 0, p.record.length));
+                        buf.put(p.record);
+                        offset += hlen + p.record.length;
+                    }
+                    raf.seek(pos);
+                    raf.write(buf.array());
+                    channel.force(true);
+                    writeTailOffset(offset);
+                    if (seq > 0L) {
+                        raf.seek(NEXT_SEQ_OFFSET);
+                        raf.writeLong(seq);
+                    }
+                    channel.force(false);
+                    if (index != null) {
+                        try {
+                            appendIndex(index);
+                        } catch (IOException e) {
+                            // entries are durable, readers just scan further
+                            LogEvent evt = new LogEvent(this, "index-error", getIndexFile(fileNumber));
+                            evt.addMessage(e);
+                            Logger.log(evt);
+                        }
+                    }
+                    notifier.signal();
+                }
+            }
+        } catch (Throwable t) {
+            for (PendingAdd p : batch) {
+                p.ref = null;
+                p.exception = t;
+            }
+        } finally {
+            for (PendingAdd p : batch) {
+                p.done = true;
+                if (p.future != null) {
+                    if (p.exception != null)
+                        p.future.completeExceptionally(p.exception);
+                    else
+                        p.future.complete(p.ref);
+                }
             }
         }
     }
+
+    /**
+     * Appends entries to the current segment's sparse index. The index is
+     * a hint (readers scan forward from the closest entry), so it is not forced.
+     */
+    private void appendIndex (ByteBuffer index) throws IOException {
+        try (RandomAccessFile idx = new RandomAccessFile(getIndexFile(fileNumber), "rw")) {
+            long len = idx.length();
+            idx.seek(len - len % SEQ_INDEX_ENTRY); // skip a torn entry left by a failed append
+            idx.write(index.array(), 0, index.position());
+        }
+    }
+
+    @Override
+    public void setLogger (Logger logger, String realm) {
+        this.logger = logger;
+        this.realm  = realm;
+    }
+
+    @Override
+    public String getRealm () {
+        return realm;
+    }
+
+    @Override
+    public Logger getLogger () {
+        return logger;
+    }
+
+    private static class PendingAdd {
+        final byte[] record;
+        BinLog.Ref ref;
+        Throwable exception;
+        boolean done;
+        CompletableFuture<BinLog.Ref> future;
+
+        PendingAdd(byte[] record) {
+            this.record = record;
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Block index of a compressed BinLog segment.
+ *
+ * <pre>
+ * Index:
+ *   4 bytes number of blocks
+ *   ...     Blocks
+ *
+ * Block:
+ *   8 bytes position of the block's first entry (uncompressed)
+ *   8 bytes file position of the compressed block
+ *   4 bytes compressed length
+ *   4 bytes uncompressed length
+ * </pre>
+ */
+class BlockIndex {
+    static final int ENTRY_LENGTH = Long.BYTES*2 + Integer.BYTES*2;
+    final int fileNumber;
+    final long[] start;
+    final long[] position;
+    final int[] length;
+    final int[] rawLength;
+
+    BlockIndex(int fileNumber, int blocks) {
+        this.fileNumber = fileNumber;
+        start = new long[blocks];
+        position = new long[blocks];
+        length = new int[blocks];
+        rawLength = new int[blocks];
+    }
+
+    /**
+     * @param raf compressed segment
+     * @param fileNumber segment file number
+     * @return segment's block index
+     * @throws IOException on error
+     */
+    static BlockIndex read (RandomAccessFile raf, int fileNumber) throws IOException {
+        raf.seek(BinLog.INDEX_POSITION_OFFSET);
+        long pos = raf.readLong();
+        raf.seek(pos);
+        int blocks = raf.readInt();
+        if (blocks < 0 || pos + Integer.BYTES + (long) blocks * ENTRY_LENGTH > raf.length())
+            throw new IOException ("Invalid block index " + fileNumber);
+        byte[] b = new byte[blocks * ENTRY_LENGTH];
+        raf.readFully(b);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        BlockIndex index = new BlockIndex(fileNumber, blocks);
+        for (int i=0; i<blocks; i++) {
+            index.start[i] = buf.getLong();
+            index.position[i] = buf.getLong();
+            index.length[i] = buf.getInt();
+            index.rawLength[i] = buf.getInt();
+        }
+        return index;
+    }
+
+    /**
+     * @param pos entry position
+     * @return block containing that position, or -1
+     */
+    int find (long pos) {
+        int i = Arrays.binarySearch(start, pos);
+        if (i < 0)
+            i = -i - 2;
+        return i >= 0 && pos < start[i] + rawLength[i] ? i : -1;
+    }
+
+    /**
+     * @param raf compressed segment
+     * @param block block number
+     * @return uncompressed block
+     * @throws IOException on error
+     */
+    byte[] inflate (RandomAccessFile raf, int block) throws IOException {
+        byte[] b = new byte[length[block]];
+        raf.seek(position[block]);
+        raf.readFully(b);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(b);
+            byte[] raw = new byte[rawLength[block]];
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int i = inflater.inflate(raw, n, raw.length - n);
+                if (i == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += i;
+            }
+            if (n != raw.length)
+                throw new IOException ("Truncated block " + fileNumber + "/" + block);
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException ("Invalid block " + fileNumber + "/" + block, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Cached, per directory, list of BinLog segments.
+ *
+ * The directory is only listed again when its modification time changes
+ * (or after {@link #invalidate()}); closed segments' headers are immutable
+ * and cached as well.
+ */
+class SegmentDirectory {
+    private static final Pattern filePattern = Pattern.compile("^[\\d]{8}.dat$");
+    private static Map<String,SegmentDirectory> dirs = Collections.synchronizedMap(new HashMap<>());
+    private final File dir;
+    private long lastModified = Long.MIN_VALUE;
+    private int[] segments = new int[0];
+    private final Set<Integer> closed = new HashSet<>();
+    private final Map<Integer,long[]> sequences = new HashMap<>();
+
+    private SegmentDirectory(File dir) {
+        this.dir = dir;
+    }
+
+    static SegmentDirectory of (File dir) {
+        String path = dir.getAbsolutePath();
+        dirs.putIfAbsent(path, new SegmentDirectory(dir));
+        return dirs.get(path);
+    }
+
+    /**
+     * Forces a directory scan on next access
+     */
+    synchronized void invalidate() {
+        lastModified = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return sorted segment file numbers
+     */
+    synchronized int[] segments() {
+        long l = dir.lastModified();
+        if (l != lastModified || l == 0L) {
+            String[] files = dir.list();
+            segments = files == null ? new int[0] : Arrays.stream(files)
+              .filter(filePattern.asPredicate())
+              .mapToInt(s -> Integer.parseInt(s.substring(0,8)))
+              .sorted()
+              .toArray();
+            lastModified = l;
+        }
+        return segments;
+    }
+
+    /**
+     * @return first segment number, or 0 if none
+     */
+    int first() {
+        int[] s = segments();
+        if (s.length > 0 && !file(s[0]).exists()) {
+            invalidate(); // purged
+            s = segments();
+        }
+        return s.length > 0 ? s[0] : 0;
+    }
+
+    /**
+     * @return last closed segment number, or 0 if none
+     * @throws IOException on error
+     */
+    int lastClosed() throws IOException {
+        int[] s = segments();
+        for (int i=s.length-1; i>=0; i--) {
+            if (isClosed(s[i]))
+                return s[i];
+        }
+        return 0;
+    }
+
+    /**
+     * @param seq sequence number
+     * @return segment containing the given sequence number, or 0
+     * @throws IOException on error
+     */
+    int find (long seq) throws IOException {
+        int[] s = segments();
+        int lo = 0;
+        int hi = s.length - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long[] range = sequences(s[mid]);
+            if (range[0] == 0L || seq >= range[1]) {
+                lo = mid + 1; // segments with unknown sequence (legacy) precede sequenced ones
+            } else if (range[0] > seq) {
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+                found = s[mid];
+                break;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param fileNumber segment
+     * @return first and next sequence number of a segment (0 if unknown)
+     * @throws IOException on error
+     */
+    long[] sequences (int fileNumber) throws IOException {
+        synchronized (this) {
+            long[] range = sequences.get(fileNumber);
+            if (range != null)
+                return range;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file(fileNumber), "r")) {
+            long[] range = BinLog.readSequences(raf);
+            raf.seek(BinLog.STATUS_OFFSET);
+            if (BinLog.Status.valueOf(raf.readShort()) == BinLog.Status.CLOSED) {
+                synchronized (this) {
+                    closed.add(fileNumber);
+                    sequences.put(fileNumber, range);
+                }
+            }
+            return range;
+        }
+    }
+
+    private boolean isClosed (int fileNumber) throws IOException {
+        synchronized (this) {
+            if (closed.contains(fileNumber))
+                return true;
+        }
+        File f = file(fileNumber);
+        if (!f.exists())
+            return false;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(BinLog.STATUS_OFFSET);
+            if (BinLog.Status.valueOf(raf.readShort()) == BinLog.Status.CLOSED) {
+                synchronized (this) {
+                    closed.add(fileNumber);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File file (int fileNumber) {
+        return new File(dir, String.format("%08d.dat", fileNumber));
+    }
+}
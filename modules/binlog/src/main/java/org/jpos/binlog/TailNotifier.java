@@ -0,0 +1,110 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.binlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Per directory tail notification.
+ *
+ * In-process writers {@link #signal()} on every tail update; changes made by
+ * other processes are picked up by a lazily started {@link WatchService}
+ * based watcher thread.
+ */
+class TailNotifier {
+    private final File dir;
+    private long version;
+    private Thread watcher;
+    private boolean watchFailed;
+
+    TailNotifier(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Wakes up waiting followers
+     */
+    synchronized void signal() {
+        version++;
+        notifyAll();
+    }
+
+    /**
+     * @return current version, to be used in a subsequent {@link #await(long, long)} call
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Waits for a signal newer than <code>seen</code>
+     * @param seen version obtained before checking the tail
+     * @param timeout max wait in millis
+     * @throws InterruptedException if interrupted
+     */
+    synchronized void await(long seen, long timeout) throws InterruptedException {
+        startWatcher();
+        long end = System.currentTimeMillis() + timeout;
+        long wait;
+        while (version == seen && (wait = end - System.currentTimeMillis()) > 0L)
+            wait(wait);
+    }
+
+    private void startWatcher() {
+        if (watcher != null || watchFailed)
+            return;
+        try {
+            Path path = dir.toPath();
+            WatchService ws = path.getFileSystem().newWatchService();
+            path.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watcher = new Thread(() -> watch(ws), "binlog-watcher-" + dir.getName());
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            watchFailed = true;
+        }
+    }
+
+    private void watch (WatchService ws) {
+        try {
+            for (;;) {
+                WatchKey key = ws.take();
+                key.pollEvents();
+                signal();
+                if (!key.reset())
+                    break; // directory no longer accessible
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        } finally {
+            try {
+                ws.close();
+            } catch (IOException ignored) { }
+            synchronized (this) {
+                watcher = null;
+                watchFailed = true;
+            }
+        }
+    }
+}
@@ -21,30 +21,46 @@ package org.jpos.binlog;
 
 import org.jpos.iso.ISOUtil;
 import org.jpos.util.TPS;
-import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.ClassRule;
 import org.junit.FixMethodOrder;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runners.MethodSorters;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class BinLogTest implements Runnable {
+    @ClassRule
+    public static TemporaryFolder classTmp = new TemporaryFolder();
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
     public static File dir;
     private AtomicLong cnt = new AtomicLong();
 
     @BeforeClass
     public static void setup () throws IOException {
-        dir = File.createTempFile("binlog-", "");
-        dir.delete();
+        dir = new File(classTmp.getRoot(), "binlog");
         System.out.println ("TEMP=" + dir);
-        // dir = new File("/tmp/binlog");
     }
     @Test
     public void test000_Write() throws IOException {
@@ -64,6 +80,514 @@ public class BinLogTest implements Runnable {
         }
     }
 
+    @Test
+    public void test001_GroupCommit() throws Exception {
+        File gdir = tmp.newFolder();
+        Set<BinLog.Ref> refs = ConcurrentHashMap.newKeySet();
+        try (BinLogWriter w = new BinLogWriter(gdir)) {
+            w.setMaxBatchSize(64);
+            w.setMaxLinger(1L);
+            Thread[] threads = new Thread[10];
+            for (int i=0; i<threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        for (int j=0; j<1000; j++)
+                            refs.add(w.add(ISOUtil.zeropad(j, 12).getBytes()));
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads)
+                t.join();
+        }
+        assertEquals("Invalid number of refs", 10000, refs.size());
+        try (BinLogReader bl = new BinLogReader(gdir)) {
+            int i = 0;
+            while (bl.hasNext()) {
+                BinLog.Entry e = bl.next();
+                assertTrue("Unexpected ref " + e.ref(), refs.contains(e.ref()));
+                assertEquals(12, e.get().length);
+                i++;
+            }
+            assertEquals("Invalid number of entries", 10000, i);
+        }
+    }
+
+    @Test
+    public void test002_AddAsync() throws Exception {
+        File adir = tmp.newFolder();
+        List<CompletableFuture<BinLog.Ref>> futures = new ArrayList<>();
+        try (BinLogWriter w = new BinLogWriter(adir)) {
+            w.setAsyncCapacity(128);
+            for (int i=0; i<5000; i++) {
+                byte[] b = ISOUtil.zeropad(i, 12).getBytes();
+                futures.add(i % 2 == 0 ? w.addAsync(b) : w.addAsync(ByteBuffer.wrap(b)));
+            }
+            futures.get(futures.size()-1).get(30, TimeUnit.SECONDS);
+        }
+        try (BinLogReader bl = new BinLogReader(adir)) {
+            for (int i=0; i<futures.size(); i++) {
+                assertTrue("Missing entry " + i, bl.hasNext());
+                BinLog.Entry e = bl.next();
+                assertTrue("Future not completed " + i, futures.get(i).isDone());
+                assertEquals(futures.get(i).get(), e.ref());
+                assertEquals(ISOUtil.zeropad(i, 12), new String(e.get()));
+            }
+            assertTrue("Unexpected entries", !bl.hasNext());
+        }
+    }
+
+    @Test
+    public void test003_MappedRead() throws Exception {
+        File mdir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(mdir);
+             BinLogReader bl = new BinLogReader(mdir)) {
+            bl.setMapped(true);
+            for (int i=0; i<3000; i++) {
+                if (i == 1000)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+                if (i % 500 == 0) {
+                    // tail follow, forces remap of the open segment
+                    assertTrue(bl.hasNext());
+                    BinLog.Entry e = bl.next();
+                    assertTrue(e.buffer().isReadOnly());
+                }
+            }
+            while (bl.hasNext())
+                bl.next();
+        }
+        try (BinLogReader std = new BinLogReader(mdir); BinLogReader bl = new BinLogReader(mdir)) {
+            bl.setMapped(true);
+            int i = 0;
+            while (std.hasNext()) {
+                assertTrue(bl.hasNext());
+                BinLog.Entry e0 = std.next();
+                BinLog.Entry e1 = bl.next();
+                assertEquals(e0.ref(), e1.ref());
+                assertEquals(ByteBuffer.wrap(e0.get()), e1.buffer());
+                assertEquals(ISOUtil.zeropad(i++, 12), new String(e1.get()));
+            }
+            assertEquals(3000, i);
+            assertTrue(!bl.hasNext());
+        }
+    }
+
+    @Test
+    public void test004_TailFollow() throws Exception {
+        File fdir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(fdir);
+             BinLogReader bl = new BinLogReader(fdir)) {
+            for (int i=0; i<10; i++) {
+                long[] added = new long[1];
+                Thread t = new Thread(() -> {
+                    ISOUtil.sleep(100L);
+                    try {
+                        added[0] = System.nanoTime();
+                        w.add("follow".getBytes());
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                t.start();
+                assertTrue("Timeout waiting for entry", bl.hasNext(10000L));
+                long lag = System.nanoTime() - added[0];
+                bl.next();
+                t.join();
+                assertTrue("Follower lag " + lag + "ns", lag < TimeUnit.MILLISECONDS.toNanos(250L));
+            }
+        }
+    }
+
+    @Test
+    public void test005_Recovery() throws Exception {
+        File rdir = tmp.newFolder();
+        BinLog.Ref last = null;
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            for (int i=0; i<100; i++) {
+                if (i == 50)
+                    w.cutover();
+                last = w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+        }
+        assertTrue("Nothing to recover", new BinLogRecovery(rdir).recover().isEmpty());
+
+        // flip a bit in the last record's payload
+        File f = new File(rdir, String.format("%08d.dat", last.getFileNumber()));
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            long pos = last.getOffset() + Integer.BYTES*2 + 5;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+        }
+        try (BinLogReader bl = new BinLogReader(rdir)) {
+            int i = 0;
+            try {
+                while (bl.hasNext()) {
+                    bl.next();
+                    i++;
+                }
+                fail("CRC error not detected");
+            } catch (NoSuchElementException e) {
+                assertEquals(99, i);
+            }
+        }
+        BinLogRecovery recovery = new BinLogRecovery(rdir);
+        assertTrue("Verified records rescanned", recovery.recover().isEmpty());
+        recovery.setFullScan(true);
+        Map<Integer,Long> truncated = recovery.recover(2);
+        assertEquals(1, truncated.size());
+        assertEquals(Long.valueOf(last.getOffset()), truncated.get(last.getFileNumber()));
+        try (BinLogReader bl = new BinLogReader(rdir)) {
+            int i = 0;
+            while (bl.hasNext()) {
+                bl.next();
+                i++;
+            }
+            assertEquals(99, i);
+        }
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            assertEquals(last, w.add("recovered".getBytes()));
+        }
+        try (BinLogReader bl = new BinLogReader(rdir)) {
+            assertTrue(bl.seek(100L));
+            assertTrue(bl.hasNext());
+            assertEquals("recovered", new String(bl.next().get()));
+        }
+    }
+
+    @Test
+    public void test006_Compression() throws Exception {
+        File cdir = tmp.newFolder();
+        List<BinLog.Ref> refs = new ArrayList<>();
+        try (BinLogWriter w = new BinLogWriter(cdir)) {
+            for (int i=0; i<3000; i++) {
+                if (i > 0 && i % 1000 == 0)
+                    w.cutover();
+                refs.add(w.add(("{\"record\":" + ISOUtil.zeropad(i, 12) + ",\"payload\":\"0000000000000000\"}").getBytes()));
+            }
+        }
+        File first = new File(cdir, "00000001.dat");
+        long length = first.length();
+        BinLogCompressor compressor = new BinLogCompressor(cdir);
+        compressor.setBlockSize(4096);
+        assertEquals(2, compressor.compressClosed());
+        assertEquals(0, compressor.compressClosed());
+        assertTrue("Segment not compressed", first.length() < length / 4);
+        assertTrue(new BinLogRecovery(cdir).recover().isEmpty());
+
+        for (boolean mapped : new boolean[] { false, true }) {
+            try (BinLogReader bl = new BinLogReader(cdir)) {
+                bl.setMapped(mapped);
+                int i = 0;
+                while (bl.hasNext()) {
+                    BinLog.Entry e = bl.next();
+                    assertEquals(refs.get(i), e.ref());
+                    assertTrue(new String(e.get()).contains(ISOUtil.zeropad(i, 12)));
+                    i++;
+                }
+                assertEquals(3000, i);
+            }
+        }
+        try (BinLogReader bl = new BinLogReader(cdir, refs.get(1500))) {
+            assertTrue(new String(bl.next().get()).contains(ISOUtil.zeropad(1500, 12)));
+        }
+        try (BinLogWriter w = new BinLogWriter(cdir)) {
+            w.add("after".getBytes());
+        }
+    }
+
+    @Test
+    public void test007_Sequence() throws Exception {
+        File sdir = tmp.newFolder();
+        long t;
+        try (BinLogWriter w = new BinLogWriter(sdir)) {
+            for (int i=1; i<=3000; i++) {
+                if (i % 2000 == 0)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+            Thread.sleep(20L);
+            t = System.currentTimeMillis();
+            for (int i=3001; i<=5000; i++) {
+                if (i % 2000 == 0)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+        }
+        try (BinLogReader bl = new BinLogReader(sdir)) {
+            assertEquals(1L, bl.getNextSequence());
+            for (long seq : new long[] { 1L, 1500L, 1999L, 2000L, 2001L, 4096L, 5000L, 3L }) {
+                assertTrue("seek " + seq, bl.seek(seq));
+                assertEquals(seq, bl.getNextSequence());
+                assertTrue(bl.hasNext());
+                assertEquals(ISOUtil.zeropad(seq, 12), new String(bl.next().get()));
+                assertEquals(seq + 1, bl.getNextSequence());
+            }
+            assertTrue(!bl.seek(5001L));
+            assertTrue(bl.seekTime(t));
+            long seq = bl.getNextSequence();
+            assertTrue("seekTime " + seq, seq <= 3001L && seq > 3001L - 1024L);
+            assertTrue(bl.seekTime(0L));
+            assertEquals(1L, bl.getNextSequence());
+        }
+    }
+
+    @Test
+    public void test008_Reaper() throws Exception {
+        File rdir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            for (int i=0; i<500; i++) {
+                if (i > 0 && i % 100 == 0)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+        }
+        BinLogReaper reaper = new BinLogReaper(rdir);
+        assertTrue("No checkpoints, no budget", reaper.reap().isEmpty());
+
+        BinLogCheckpoints checkpoints = new BinLogCheckpoints(rdir);
+        try (BinLogReader bl = new BinLogReader(rdir)) {
+            for (int i=0; i<250 && bl.hasNext(); i++)
+                bl.next(); // 3rd segment
+            bl.checkpoint("fast");
+        }
+        checkpoints.save("slow", new BinLog.Ref(2, BinLog.FIRST_EVENT_OFFSET));
+        assertEquals(2, checkpoints.getAll().size());
+        assertEquals(2, checkpoints.getMin().getFileNumber());
+        assertEquals(Arrays.asList(1), reaper.reap());
+
+        checkpoints.remove("slow");
+        File archive = new File(rdir, "archive");
+        reaper.setArchiveDir(archive);
+        assertEquals(Arrays.asList(2), reaper.reap());
+        assertTrue(new File(archive, "00000002.dat").exists());
+
+        reaper.setMaxSize(1L);
+        assertEquals(Arrays.asList(4, 3), reaper.reap()); // open segment (5) is kept
+        try (BinLogReader bl = new BinLogReader(rdir)) {
+            assertEquals(5, bl.getFileNumber());
+            assertTrue(bl.seek(401L));
+        }
+    }
+
+    @Test
+    public void test009_Replay() throws Exception {
+        File rdir = tmp.newFolder();
+        List<BinLog.Ref> refs = new ArrayList<>();
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            for (int i=0; i<5500; i++) {
+                if (i > 0 && i % 1000 == 0)
+                    w.cutover();
+                refs.add(w.add(ISOUtil.zeropad(i, 12).getBytes()));
+            }
+        }
+        BinLogReplay replay = new BinLogReplay(rdir);
+        replay.setThreads(4);
+        List<BinLog.Ref> replayed = new ArrayList<>();
+        assertEquals(5500L, replay.replay(e -> replayed.add(e.ref())));
+        assertEquals(refs, replayed);
+
+        // partitioned by last digit, each partition in order
+        Map<Character,List<String>> partitions = new ConcurrentHashMap<>();
+        assertEquals(5500L, replay.replay(
+          e -> new String(e.get()).charAt(11),
+          e -> partitions.computeIfAbsent(new String(e.get()).charAt(11), k -> new ArrayList<>()).add(new String(e.get()))
+        ));
+        assertEquals(10, partitions.size());
+        for (List<String> l : partitions.values()) {
+            assertEquals(550, l.size());
+            for (int i=1; i<l.size(); i++)
+                assertTrue(l.get(i-1).compareTo(l.get(i)) < 0);
+        }
+
+        // a small window keeps decoders blocked on their segment's queue
+        replay.setWindow(8);
+        replayed.clear();
+        assertEquals(5500L, replay.replay(e -> replayed.add(e.ref())));
+        assertEquals(refs, replayed);
+
+        replay.setFrom(refs.get(2500));
+        replayed.clear();
+        assertEquals(3000L, replay.replay(e -> replayed.add(e.ref())));
+        assertEquals(refs.subList(2500, 5500), replayed);
+    }
+
+    @Test
+    public void test010_IndexFailure() throws Exception {
+        File idir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(idir)) {
+            File idx = w.getIndexFile(w.getFileNumber());
+            assertTrue(idx.mkdir()); // appendIndex can't open it
+            BinLog.Ref ref = w.add("durable".getBytes());
+            assertEquals(w.getFileNumber(), ref.getFileNumber());
+            assertTrue(w.addAsync("async".getBytes()).get(30, TimeUnit.SECONDS).getOffset() > ref.getOffset());
+        }
+        try (BinLogReader bl = new BinLogReader(idir)) {
+            assertTrue(bl.hasNext());
+            assertEquals("durable", new String(bl.next().get()));
+            assertTrue(bl.hasNext());
+            assertEquals("async", new String(bl.next().get()));
+        }
+    }
+
+    @Test
+    public void test011_CloseWhileAddingAsync() throws Exception {
+        File cdir = tmp.newFolder();
+        List<CompletableFuture<BinLog.Ref>> futures = new ArrayList<>();
+        List<Thread> producers = new ArrayList<>();
+        BinLogWriter w = new BinLogWriter(cdir);
+        w.setAsyncCapacity(4);
+        for (int i=0; i<4; i++) {
+            Thread t = new Thread(() -> {
+                for (int j=0; j<2000; j++) {
+                    CompletableFuture<BinLog.Ref> f = w.addAsync(ISOUtil.zeropad(j, 12).getBytes());
+                    synchronized (futures) {
+                        futures.add(f);
+                    }
+                }
+            });
+            producers.add(t);
+            t.start();
+        }
+        Thread.sleep(50L);
+        w.close();
+        for (Thread t : producers)
+            t.join(30000L);
+        long committed = 0L;
+        for (CompletableFuture<BinLog.Ref> f : futures) {
+            assertTrue("Future not completed", f.isDone());
+            if (!f.isCompletedExceptionally())
+                committed++;
+        }
+        assertEquals(8000, futures.size());
+        try (BinLogReader bl = new BinLogReader(cdir)) {
+            long n = 0L;
+            while (bl.hasNext()) {
+                bl.next();
+                n++;
+            }
+            assertEquals(committed, n);
+        }
+    }
+
+    @Test
+    public void test012_RecoverNextSequence() throws Exception {
+        File rdir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            for (int i=1; i<=1500; i++) {
+                if (i == 1000)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+        }
+        // tail made it to disk, NEXT_SEQ didn't
+        try (RandomAccessFile raf = new RandomAccessFile(new File(rdir, "00000002.dat"), "rw")) {
+            raf.seek(BinLog.NEXT_SEQ_OFFSET);
+            raf.writeLong(1200L);
+        }
+        assertTrue(new BinLogRecovery(rdir).recover().isEmpty());
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            w.add(ISOUtil.zeropad(1501, 12).getBytes());
+        }
+        try (BinLogReader bl = new BinLogReader(rdir)) {
+            assertTrue(bl.seek(1501L));
+            assertTrue(bl.hasNext());
+            assertEquals(ISOUtil.zeropad(1501, 12), new String(bl.next().get()));
+        }
+    }
+
+    @Test
+    public void test013_SeekTimeAfterCutover() throws Exception {
+        File sdir = tmp.newFolder();
+        long t;
+        try (BinLogWriter w = new BinLogWriter(sdir)) {
+            for (int i=1; i<=100; i++)
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            Thread.sleep(20L);
+            t = System.currentTimeMillis();
+            for (int i=101; i<=200; i++)
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            w.cutover();
+            try (BinLogReader bl = new BinLogReader(sdir)) {
+                assertTrue(bl.seekTime(t));
+                assertEquals(1, bl.getFileNumber());
+                assertTrue("seekTime " + bl.getNextSequence(), bl.getNextSequence() <= 101L);
+            }
+        }
+    }
+
+    @Test
+    public void test014_ReplayConsumerFailure() throws Exception {
+        File rdir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            for (int i=0; i<5500; i++) {
+                if (i > 0 && i % 1000 == 0)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+        }
+        BinLogReplay replay = new BinLogReplay(rdir);
+        replay.setThreads(4);
+        replay.setWindow(8); // decoders are blocked on full queues when the consumer fails
+        RuntimeException boom = new RuntimeException("boom");
+        AtomicLong seen = new AtomicLong();
+        try {
+            replay.replay(e -> {
+                if (seen.incrementAndGet() == 10)
+                    throw boom;
+            });
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals(boom, e.getCause());
+        }
+        try {
+            replay.replay(e -> new String(e.get()).charAt(11), e -> {
+                throw boom;
+            });
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals(boom, e.getCause());
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (decoders() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50L);
+        assertEquals("Decoder threads leaked", 0, decoders());
+    }
+
+    @Test
+    public void test015_ReaperAgeSurvivesRecovery() throws Exception {
+        File rdir = tmp.newFolder();
+        try (BinLogWriter w = new BinLogWriter(rdir)) {
+            for (int i=0; i<300; i++) {
+                if (i > 0 && i % 100 == 0)
+                    w.cutover();
+                w.add(ISOUtil.zeropad(i, 12).getBytes());
+            }
+        }
+        Thread.sleep(200L);
+        new BinLogRecovery(rdir).recover();
+        assertTrue(new BinLogCompressor(rdir).compress(1));
+        for (int i=1; i<=2; i++) // as if just rewritten
+            assertTrue(new File(rdir, String.format("%08d.dat", i)).setLastModified(System.currentTimeMillis()));
+
+        BinLogReaper reaper = new BinLogReaper(rdir);
+        reaper.setMaxAge(100L);
+        assertEquals(Arrays.asList(2, 1), reaper.reap()); // open segment (3) is kept
+    }
+
+    private static int decoders() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("binlog-decode-"))
+                n++;
+        }
+        return n;
+    }
+
     public void run() {
         TPS tps = new TPS();
         try (BinLogWriter bl = new BinLogWriter(dir)) {
@@ -80,16 +604,4 @@ public class BinLogTest implements Runnable {
             e.printStackTrace(System.err);
         }
     }
-
-    @AfterClass
-    public static void cleanup() throws IOException {
-        for (File f : dir.listFiles()) {
-            if (f.toString().endsWith(".dat")) {
-                System.out.println ("Deleting " + f.toString());
-                f.delete();
-            }
-        }
-        System.out.println ("Deleting " + dir);
-        dir.delete();
-    }
 }
@@ -18,6 +18,7 @@
 
 package org.jpos.gl;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.math.BigDecimal;
@@ -88,6 +89,37 @@ public class AccountDetail {
         computeReverseBalances(balance);
     }
 
+    /**
+     * Constructs an AccountDetail summary (entries were streamed).
+     * @param journal the Journal.
+     * @param account the account.
+     * @param initialBalance initial balance (reporting currency).
+     * @param finalBalance final balance (reporting currency).
+     * @param debits total debits.
+     * @param credits total credits.
+     * @param start start date (inclusive).
+     * @param end end date (inclusive).
+     * @param layers the layers involved in this detail
+     */
+    public AccountDetail(
+        Journal journal, Account account,
+        BigDecimal initialBalance, BigDecimal finalBalance,
+        BigDecimal debits, BigDecimal credits,
+        Date start, Date end, short[] layers)
+    {
+        super();
+        this.journal               = journal;
+        this.account               = account;
+        this.initialBalance        = initialBalance;
+        this.finalBalance          = finalBalance;
+        this.debits                = debits;
+        this.credits               = credits;
+        this.start                 = start;
+        this.end                   = end;
+        this.entries               = Collections.emptyList();
+        this.layers                = layers;
+    }
+
     public Journal getJournal() {
         return journal;
     }
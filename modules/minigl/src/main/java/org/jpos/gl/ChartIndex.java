@@ -0,0 +1,131 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of a chart of accounts' structure.
+ *
+ * Holds code to id resolution, the ancestors of every account and
+ * the final (leaf) accounts below every composite account, so that
+ * GLSession can resolve accounts without walking the Hibernate
+ * parent/children associations.
+ *
+ * The number of accounts and their max id are kept as a fingerprint,
+ * used by GLSession to detect accounts added or removed by other nodes.
+ */
+class ChartIndex {
+    private long chartId;
+    private Map<String,Long> ids = new HashMap<String,Long>();
+    private Map<Long,Boolean> finals = new HashMap<Long,Boolean>();
+    private Map<Long,List<Long>> ancestors = new HashMap<Long,List<Long>>();
+    private Map<Long,List<Long>> leaves = new HashMap<Long,List<Long>>();
+    private long count;
+    private long maxId;
+    private volatile long checked = System.currentTimeMillis();
+
+    /**
+     * @param chartId the chart's id
+     * @param rows {id, code, parent id, Boolean.TRUE if final account} for every account in the chart
+     */
+    ChartIndex (long chartId, List<Object[]> rows) {
+        this.chartId = chartId;
+        Map<Long,Long> parents = new HashMap<Long,Long>();
+        for (Object[] row : rows) {
+            Long id = (Long) row[0];
+            count++;
+            maxId = Math.max (maxId, id);
+            ids.put ((String) row[1], id);
+            finals.put (id, (Boolean) row[3]);
+            if (row[2] != null)
+                parents.put (id, (Long) row[2]);
+        }
+        for (Long id : finals.keySet()) {
+            List<Long> l = new ArrayList<Long>();
+            for (Long p = id; p != null; p = parents.get (p))
+                l.add (p);
+            ancestors.put (id, Collections.unmodifiableList (l));
+            if (finals.get (id)) {
+                for (Long p : l.subList (1, l.size())) {
+                    List<Long> leaf = leaves.get (p);
+                    if (leaf == null)
+                        leaves.put (p, leaf = new ArrayList<Long>());
+                    leaf.add (id);
+                }
+            }
+        }
+        for (Map.Entry<Long,List<Long>> entry : leaves.entrySet()) {
+            Collections.sort (entry.getValue());
+            entry.setValue (Collections.unmodifiableList (entry.getValue()));
+        }
+    }
+    long getChartId() {
+        return chartId;
+    }
+    /**
+     * @param code account code
+     * @return account id or null
+     */
+    Long getId (String code) {
+        return ids.get (code);
+    }
+    /**
+     * @param id account id
+     * @return true if id belongs to a final account, false if composite, null if unknown
+     */
+    Boolean isFinal (Long id) {
+        return finals.get (id);
+    }
+    /**
+     * @param id account id
+     * @return account id followed by its ancestors' ids up to the chart, or null if unknown
+     */
+    List<Long> getAncestors (Long id) {
+        return ancestors.get (id);
+    }
+    /**
+     * @param id composite account id
+     * @return ids of the final accounts below it, or null if unknown
+     */
+    List<Long> getLeaves (Long id) {
+        List<Long> l = leaves.get (id);
+        if (l == null && Boolean.FALSE.equals (finals.get (id)))
+            l = Collections.emptyList();
+        return l;
+    }
+    /**
+     * @param count number of accounts currently in the chart (including the chart itself)
+     * @param maxId max account id (null if none)
+     * @return true if the index was built from the same set of accounts
+     */
+    boolean matches (long count, Long maxId) {
+        return this.count == count && this.maxId == (maxId != null ? maxId : 0L);
+    }
+    long getChecked() {
+        return checked;
+    }
+    void setChecked (long checked) {
+        this.checked = checked;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+import java.util.Date;
+import org.hibernate.HibernateException;
+
+/**
+ * Receives GLEntries as they are read by
+ * {@link GLSession#getAccountDetail(Journal,Account,Date,Date,short[],GLEntryHandler)}.
+ *
+ * @see AccountDetail
+ */
+public interface GLEntryHandler {
+    /**
+     * @param entry the entry, its balance holds the running balance after it
+     * @return false to stop reading entries
+     * @throws GLException to abort
+     */
+    public boolean handle (GLEntry entry) 
+        throws GLException, HibernateException;
+}
@@ -20,12 +20,20 @@ package org.jpos.gl;
 
 import java.util.*;
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
 
 import org.hibernate.*;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.criterion.Disjunction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.PostInsertIdentifierGenerator;
+import org.hibernate.jdbc.Work;
 import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.type.LongType;
 
@@ -39,6 +47,12 @@ import org.jpos.ee.DB;
  */
 public class GLSession {
     private static Map<String, Object> ruleCache = new HashMap<String, Object>();
+    private static Map<Long, RulePlan> rulePlans = new HashMap<Long, RulePlan>();
+    private static long rulePlansVersion;
+    private static Map<Long, LockStats> lockStats = new HashMap<Long, LockStats>();
+    private static Map<Long, ChartIndex> chartIndexes = new HashMap<Long, ChartIndex>();
+    private static Map<String, Long> chartIds = new HashMap<String, Long>();
+    private static long chartIndexesVersion;
     private GLUser user;
     private Session session;
     private DB db;
@@ -46,6 +60,14 @@ public class GLSession {
     public static final BigDecimal ZERO = new BigDecimal ("0.00");
     public static final BigDecimal Z    = new BigDecimal ("0");
     private long SAFE_WINDOW = 1000L;
+    private static final int MAX_IN_LIST = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int FETCH_SIZE = 500;
+    private static final long RULE_PLAN_CHECK_INTERVAL = 5000L;
+    private static final long CHART_INDEX_CHECK_INTERVAL = 5000L;
+    private boolean writeThroughBalanceCache;
+    private Map<Long,List<BatchBalance>> batchBalances;
+    private Map<String,AccountLock> batchLocks;
 
     /**
      * Construct a GLSession for a given user.
@@ -246,12 +268,28 @@ public class GLSession {
         throws HibernateException, GLException
     {
         checkPermission (GLPermission.READ);
+        Long id;
+        synchronized (chartIndexes) {
+            id = chartIds.get (code);
+        }
+        if (id != null) {
+            Account chart = (Account) session.get (CompositeAccount.class, id);
+            if (chart != null)
+                return chart;
+            invalidateChartIndexes();
+        }
         Query q = session.createQuery (
             "from acct in class org.jpos.gl.CompositeAccount where code=:code and parent is null"
         );
         q.setParameter ("code", code);
         Iterator iter = q.list().iterator();
-        return (Account) (iter.hasNext() ? iter.next() : null);
+        Account chart = (Account) (iter.hasNext() ? iter.next() : null);
+        if (chart != null) {
+            synchronized (chartIndexes) {
+                chartIds.put (code, chart.getId());
+            }
+        }
+        return chart;
     }
     /**
      * @return List of charts of accounts.
@@ -282,13 +320,7 @@ public class GLSession {
         throws HibernateException, GLException
     {
         checkPermission (GLPermission.READ);
-        Query q = session.createQuery (
-            "from acct in class org.jpos.gl.Account where root=:chart and code=:code"
-        );
-        q.setLong ("chart", chart.getId());
-        q.setParameter ("code", code);
-        Iterator iter = q.list().iterator();
-        return (Account) (iter.hasNext() ? iter.next() : null);
+        return getAccount (Account.class, chart, code);
     }
 
     /**
@@ -348,6 +380,7 @@ public class GLSession {
         acct.setParent (parent);
         if (!fast)
             parent.getChildren().add (acct);
+        invalidateChartIndexes();
     }
 
     /**
@@ -363,6 +396,7 @@ public class GLSession {
     {
         checkPermission (GLPermission.WRITE);
         session.save (acct);
+        invalidateChartIndexes();
     }
 
     /**
@@ -378,13 +412,7 @@ public class GLSession {
         throws HibernateException, GLException
     {
         checkPermission (GLPermission.READ);
-        Query q = session.createQuery (
-            "from acct in class org.jpos.gl.FinalAccount where root=:chart and code=:code"
-        );
-        q.setLong ("chart", chart.getId());
-        q.setParameter ("code", code);
-        Iterator iter = q.list().iterator();
-        return (FinalAccount) (iter.hasNext() ? iter.next() : null);
+        return getAccount (FinalAccount.class, chart, code);
     }
     /**
      * @param chart chart of accounts.
@@ -464,13 +492,7 @@ public class GLSession {
         throws HibernateException, GLException
     {
         checkPermission (GLPermission.READ);
-        Query q = session.createQuery (
-            "from acct in class org.jpos.gl.CompositeAccount where root=:chart and code=:code"
-        );
-        q.setLong ("chart", chart.getId());
-        q.setParameter ("code", code);
-        Iterator iter = q.list().iterator();
-        return (CompositeAccount) (iter.hasNext() ? iter.next() : null);
+        return getAccount (CompositeAccount.class, chart, code);
     }
     /**
      * @param chartName chart of account's code.
@@ -595,8 +617,140 @@ public class GLSession {
             invalidateCheckpoints (txn);
         Collection rules = getRules (txn);
         // dumpRules (rules);
+        if (writeThroughBalanceCache)
+            lockAccounts (journal, getAccounts (txn));
         applyRules (txn, rules);
         session.save (txn);
+        if (writeThroughBalanceCache)
+            updateBalanceCaches (journal, Collections.singletonList (txn));
+    }
+    /**
+     * Post a batch of transactions in a given journal.
+     *
+     * @param journal the journal.
+     * @param txns the transactions.
+     * @return rejected transactions along with the reason (empty if all transactions were posted)
+     * @throws GLException if user doesn't have POST permission on this journal.
+     * @throws HibernateException on database errors.
+     * @see #postAll(Journal,Iterable,int)
+     */
+    public Map<GLTransaction,GLException> postAll (Journal journal, Iterable<GLTransaction> txns) 
+        throws HibernateException, GLException
+    {
+        return postAll (journal, txns, DEFAULT_BATCH_SIZE);
+    }
+    /**
+     * Post a batch of transactions in a given journal.
+     *
+     * <p>Rules are applied to every transaction as in {@link #post}, but
+     * balances checked by the balance rules are read once per account
+     * and then kept up to date in memory, accounts are locked once,
+     * and checkpoints are invalidated once per account (starting at the
+     * earliest post date seen for that account).</p>
+     *
+     * <p>The session is flushed every <code>batchSize</code> transactions
+     * and posted transactions are evicted from it. When GLTransaction and
+     * GLEntry ids come from a sequence or table generator, inserts are
+     * also sent using JDBC batches of <code>batchSize</code> (setting
+     * <code>hibernate.order_inserts=true</code> allows them to be grouped
+     * in larger batches). Identity columns, which is what the default
+     * <code>native</code> generator maps to on MySQL, H2 and SQL Server,
+     * require one round trip per insert, so Hibernate doesn't batch them.</p>
+     *
+     * <p>A transaction rejected by a rule is not posted and is reported
+     * in the returned map, the rest of the batch is posted. Rejected
+     * transactions have no id, so the map is keyed by identity; it
+     * iterates in the order the transactions were given.</p>
+     *
+     * @param journal the journal.
+     * @param txns the transactions.
+     * @param batchSize number of transactions between flushes.
+     * @return rejected transactions along with the reason (empty if all transactions were posted)
+     * @throws GLException if user doesn't have POST permission on this journal.
+     * @throws HibernateException on database errors.
+     * @see GLPermission
+     * @see JournalRule
+     */
+    public Map<GLTransaction,GLException> postAll 
+        (Journal journal, Iterable<GLTransaction> txns, int batchSize) 
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.POST, journal);
+        Map<GLTransaction,GLException> failures = new FailureMap();
+        Map<Long,Date> invalidations = new HashMap<Long,Date>();
+        Map<Long,Account> accounts = new HashMap<Long,Account>();
+        List<GLTransaction> pending = new ArrayList<GLTransaction>();
+        Integer jdbcBatchSize = session.getJdbcBatchSize();
+
+        if (isInsertBatchable())
+            session.setJdbcBatchSize (batchSize);
+        batchBalances = new HashMap<Long,List<BatchBalance>>();
+        batchLocks = new HashMap<String,AccountLock>();
+        try {
+            for (GLTransaction txn : txns) {
+                txn.setJournal (journal);
+                txn.setTimestamp (new Date());
+                boolean backdated = txn.getPostDate() != null;
+                if (!backdated)
+                    txn.setPostDate (txn.getTimestamp());
+                try {
+                    Collection rules = getRules (txn);
+                    if (writeThroughBalanceCache)
+                        lockAccounts (journal, getAccounts (txn));
+                    applyRules (txn, rules);
+                } catch (GLException e) {
+                    failures.put (txn, e);
+                    continue;
+                }
+                session.save (txn);
+                updateBatchBalances (journal, txn);
+                if (backdated) {
+                    for (Account acct : getAccounts (txn)) {
+                        Date d = invalidations.get (acct.getId());
+                        if (d == null || d.after (txn.getPostDate())) {
+                            invalidations.put (acct.getId(), txn.getPostDate());
+                            accounts.put (acct.getId(), acct);
+                        }
+                    }
+                }
+                pending.add (txn);
+                if (pending.size() >= batchSize)
+                    flushBatch (journal, pending);
+            }
+            flushBatch (journal, pending);
+
+            Map<Date,List<Account>> ranges = new HashMap<Date,List<Account>>();
+            for (Map.Entry<Long,Date> entry : invalidations.entrySet()) {
+                List<Account> l = ranges.get (entry.getValue());
+                if (l == null)
+                    ranges.put (entry.getValue(), l = new ArrayList<Account>());
+                l.add (accounts.get (entry.getKey()));
+            }
+            for (Map.Entry<Date,List<Account>> range : ranges.entrySet()) {
+                for (List<Account> l : partition (range.getValue())) {
+                    invalidateCheckpoints (
+                        journal, l.toArray (new Account[l.size()]), range.getKey(), null, null
+                    );
+                }
+            }
+        } finally {
+            batchBalances = null;
+            batchLocks = null;
+            session.setJdbcBatchSize (jdbcBatchSize);
+        }
+        return failures;
+    }
+    /**
+     * @return false if GLTransaction or GLEntry ids are generated on insert (identity columns)
+     */
+    private boolean isInsertBatchable () {
+        SessionFactoryImplementor sf = (SessionFactoryImplementor) session.getSessionFactory();
+        for (Class<?> clazz : new Class<?>[] { GLTransaction.class, GLEntry.class }) {
+            if (sf.getMetamodel().entityPersister (clazz).getIdentifierGenerator()
+                instanceof PostInsertIdentifierGenerator)
+                return false;
+        }
+        return true;
     }
     /**
      * Moves a transaction to a new journal
@@ -610,9 +764,15 @@ public class GLSession {
     {
         checkPermission (GLPermission.POST, journal);
         checkPermission (GLPermission.POST, txn.getJournal());
+        if (writeThroughBalanceCache) {
+            lockAccounts (txn.getJournal(), getAccounts (txn));
+            lockAccounts (journal, getAccounts (txn));
+        }
         invalidateCheckpoints (txn);    // invalidate in old journal
+        adjustBalanceCaches (getBalanceCaches (txn.getJournal(), getAccounts (txn)), txn, false);
         txn.setJournal (journal);
         invalidateCheckpoints (txn);    // invalidate in new journal
+        adjustBalanceCaches (getBalanceCaches (journal, getAccounts (txn)), txn, true);
         applyRules (txn, getRules (txn));
         session.update (txn);
     }
@@ -1032,18 +1192,27 @@ public class GLSession {
         checkPermission (GLPermission.READ, journal);
         BigDecimal balance[] = { ZERO, Z };
         short[] layersCopy = Arrays.copyOf(layers,layers.length);
+        if (batchBalances != null && date == null && maxId == 0L)
+            return getBatchBalances (journal, acct, layersCopy);
         if (acct.getChildren() != null) {
-            if (acct.isChart()) {
-                return getChartBalances 
-                    (journal, (CompositeAccount) acct, date, inclusive, layersCopy, maxId);
-            }
-            Iterator iter = acct.getChildren().iterator();
-            while (iter.hasNext()) {
-                Account a = (Account) iter.next();
-                BigDecimal[] b = getBalances (journal, a, date, inclusive, layersCopy, maxId);
-                balance[0] = balance[0].add (b[0]);
-                // session.evict (a); FIXME this conflicts with r251 (cascade=evict genearting a failed to lazily initialize a collection
+            Map<Long,Account> accounts = new LinkedHashMap<Long,Account>();
+            recurseFinalAccounts (acct, accounts);
+            Map<Long,BigDecimal[]> balances;
+            if (isMaterializeEntries (journal)) {
+                // same code path as the leaves' own balances
+                balances = new HashMap<Long,BigDecimal[]>();
+                for (Account a : accounts.values())
+                    balances.put (a.getId(), getBalances (journal, a, date, inclusive, layersCopy, maxId));
+            } else {
+                balances = getFinalBalances (journal, accounts, date, inclusive, layersCopy, maxId);
             }
+            return sumBalances (acct, balances);
+        }
+        else if (acct.isFinalAccount() && !isMaterializeEntries (journal)) {
+            Map<Long,Account> accounts = new HashMap<Long,Account>();
+            accounts.put (acct.getId(), acct);
+            return getFinalBalances
+                (journal, accounts, date, inclusive, layersCopy, maxId).get (acct.getId());
         }
         else if (acct.isFinalAccount()) {
             Criteria entryCrit = session.createCriteria (GLEntry.class)
@@ -1069,7 +1238,7 @@ public class GLSession {
                 }
             } else {
                 BalanceCache bcache = getBalanceCache (journal, acct, layersCopy);
-                if (bcache != null && bcache.getRef() <= maxId) {
+                if (bcache != null && (maxId == 0L || bcache.getRef() <= maxId)) {
                     balance[0] = bcache.getBalance();
                     entryCrit.add (Restrictions.gt("id", bcache.getRef()));
                 }
@@ -1100,21 +1269,7 @@ public class GLSession {
 
         Criteria crit = session.createCriteria (GLEntry.class);
 
-        boolean hasChildren = false;
-        if (acct.isCompositeAccount()) {
-            Disjunction dis = Restrictions.disjunction();
-            for (Long l : getChildren (acct)) {
-                hasChildren = true;
-                dis.add (Restrictions.idEq(l));
-            }
-            if (hasChildren) {
-                Criteria subCrit = crit.createCriteria(("account"));
-                subCrit.add (dis);
-            } 
-        }
-        if (!hasChildren) {
-            crit.add (Restrictions.eq ("account", acct));
-        }
+        crit.add (getAccountRestriction (acct));
 
         crit.add (Restrictions.in ("layer", (Object[])toShortArray (layers)));
         crit = crit.createCriteria ("transaction")
@@ -1135,6 +1290,111 @@ public class GLSession {
                 start, end, entries, layers );
     }
 
+    /**
+     * Streams the AccountDetail for a date range.
+     *
+     * Entries are read in pages of FETCH_SIZE, ordered by post date,
+     * timestamp and id, each page starting right after the last entry of
+     * the previous one (keyset pagination, so no JDBC driver specific
+     * cursor support is required). Entries are handed to the handler with
+     * their running balance and evicted from the session right after, so
+     * memory usage doesn't depend on the number of entries in the range.
+     *
+     * @param journal the journal.
+     * @param acct the account.
+     * @param start date (inclusive).
+     * @param end date (inclusive).
+     * @param layers the layers.
+     * @param handler receives every entry.
+     * @return Account detail summary (balances, debits and credits, no entries).
+     * @throws GLException if user doesn't have READ permission on this journal.
+     */
+    public AccountDetail getAccountDetail 
+        (Journal journal, Account acct, Date start, Date end, short[] layers, GLEntryHandler handler) 
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.READ);
+        start = Util.floor (start);
+        end   = Util.ceil (end);
+
+        BigDecimal initialBalance = getBalances (journal, acct, start, false, layers, 0L)[0];
+        BigDecimal balance = initialBalance;
+        BigDecimal debits  = ZERO;
+        BigDecimal credits = ZERO;
+
+        StringBuilder hql = new StringBuilder (
+          "select entry from org.jpos.gl.GLEntry entry join fetch entry.transaction txn " +
+          "where txn.journal = :journal and entry.layer in (:layers) " +
+          "and txn.postDate >= :start and txn.postDate <= :end and "
+        );
+        List<List<Long>> leaves = null;
+        if (acct.isCompositeAccount()) {
+            leaves = partition (getChildren (acct));
+            if (leaves.isEmpty())
+                leaves = null;
+        }
+        if (leaves != null) {
+            hql.append ('(');
+            for (int i=0; i<leaves.size(); i++) {
+                if (i > 0)
+                    hql.append (" or ");
+                hql.append ("entry.account.id in (:accts").append (i).append (')');
+            }
+            hql.append (')');
+        } else {
+            hql.append ("entry.account = :acct");
+        }
+        String order = " order by txn.postDate, txn.timestamp, entry.id";
+        String first = hql.toString() + order;
+        String next  = hql.toString() +
+          " and (txn.postDate > :lastPostDate or (txn.postDate = :lastPostDate and" +
+          " (txn.timestamp > :lastTimestamp or (txn.timestamp = :lastTimestamp and entry.id > :lastId))))" +
+          order;
+
+        GLEntry last = null;
+        for (boolean more = true; more; ) {
+            Query q = session.createQuery (last == null ? first : next);
+            q.setParameter ("journal", journal);
+            q.setParameterList ("layers", toShortArray (layers));
+            q.setParameter ("start", start);
+            q.setParameter ("end", end);
+            if (leaves != null) {
+                for (int i=0; i<leaves.size(); i++)
+                    q.setParameterList ("accts" + i, leaves.get (i), new LongType());
+            } else {
+                q.setParameter ("acct", acct);
+            }
+            if (last != null) {
+                q.setTimestamp ("lastPostDate", last.getTransaction().getPostDate());
+                q.setTimestamp ("lastTimestamp", last.getTransaction().getTimestamp());
+                q.setLong ("lastId", last.getId());
+            }
+            q.setReadOnly (true);
+            q.setMaxResults (FETCH_SIZE);
+            List<GLEntry> page = q.list();
+            for (GLEntry entry : page) {
+                balance = balance.add (entry.getImpact());
+                entry.setBalance (balance);
+                if (entry.isCredit())
+                    credits = credits.add (entry.getAmount());
+                else
+                    debits = debits.add (entry.getAmount());
+                more = handler.handle (entry);
+                session.evict (entry);
+                session.evict (entry.getTransaction());
+                if (!more)
+                    break;
+            }
+            if (page.size() < FETCH_SIZE)
+                more = false;
+            else
+                last = page.get (page.size() - 1);
+        }
+        return new AccountDetail (
+            journal, acct, initialBalance, balance, debits, credits, start, end, layers
+        );
+    }
+
     /**
      * AccountDetail for date range
      * @param journal the journal.
@@ -1151,21 +1411,7 @@ public class GLSession {
         checkPermission (GLPermission.READ);
         Criteria crit = session.createCriteria (GLEntry.class);
 
-        boolean hasChildren = false;
-        if (acct.isCompositeAccount()) {
-            Disjunction dis = Restrictions.disjunction();
-            for (Long l : getChildren (acct)) {
-                hasChildren = true;
-                dis.add (Restrictions.idEq(l));
-            }
-            if (hasChildren) {
-                Criteria subCrit = crit.createCriteria(("account"));
-                subCrit.add (dis);
-            }
-        }
-        if (!hasChildren) {
-            crit.add (Restrictions.eq ("account", acct));
-        }
+        crit.add (getAccountRestriction (acct));
 
         crit.add (Restrictions.in ("layer", (Object[])toShortArray (layers)));
         crit = crit.createCriteria ("transaction")
@@ -1258,10 +1504,146 @@ public class GLSession {
         if (date == null)
             throw new GLException ("Invalid checkpoint date");
         checkPermission (GLPermission.CHECKPOINT, journal);
-        // Transaction tx = session.beginTransaction();
-        session.buildLockRequest(LockOptions.UPGRADE).lock(journal);
-        createCheckpoint0 (journal, acct, date, threshold, layers);
-        // tx.commit();
+        if (acct.isCompositeAccount()) {
+            // account locks are acquired in id order, see lock(Journal,Account[])
+            Map<Long,Account> accounts = new TreeMap<Long,Account>();
+            recurseFinalAccounts (acct, accounts);
+            for (Account a : accounts.values())
+                createCheckpoint0 (journal, a, date, threshold, layers);
+        }
+        else if (acct.isFinalAccount())
+            createCheckpoint0 (journal, acct, date, threshold, layers);
+    }
+    /**
+     * Number of entries an undated balance query would have to replay on
+     * top of each final account's balance cache (all entries if the account
+     * has no cache for the given layers).
+     *
+     * <p>Accounts having a balance cache only scan the entries past its
+     * ref; accounts without one are fully counted, so this is meant to
+     * seed a running tally that is then kept up to date with
+     * {@link #getEntryCounts}.</p>
+     *
+     * @param journal the Journal
+     * @param layers the layers
+     * @param threshold minimum number of entries to report an account
+     * @param maxResults maximum number of accounts to report (0 for no limit)
+     * @return map of final account id to entry count, busiest accounts first
+     * @throws GLException if user doesn't have CHECKPOINT permission on this journal.
+     */
+    public Map<Long,Long> getReplayCounts
+        (Journal journal, short[] layers, long threshold, int maxResults)
+        throws HibernateException, GLException
+    {
+        return getReplayCounts (journal, layers, threshold, maxResults, Long.MAX_VALUE);
+    }
+    /**
+     * Same as {@link #getReplayCounts(Journal,short[],long,int)}, counting
+     * only entries up to <code>maxId</code>, so that a tally seeded with it
+     * can be continued with {@link #getEntryCounts} from <code>maxId</code>.
+     *
+     * @param journal the Journal
+     * @param layers the layers
+     * @param threshold minimum number of entries to report an account
+     * @param maxResults maximum number of accounts to report (0 for no limit)
+     * @param maxId upper GLEntry id (inclusive)
+     * @return map of final account id to entry count, busiest accounts first
+     * @throws GLException if user doesn't have CHECKPOINT permission on this journal.
+     */
+    public Map<Long,Long> getReplayCounts
+        (Journal journal, short[] layers, long threshold, int maxResults, long maxId)
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.CHECKPOINT, journal);
+        short[] layersCopy = Arrays.copyOf (layers, layers.length);
+        Query cached = session.createQuery (
+            "select entry.account.id, count(entry.id)" +
+            " from org.jpos.gl.GLEntry entry join entry.transaction txn," +
+            " org.jpos.gl.BalanceCache bc" +
+            " where bc.journal = :journal and bc.layers = :layerString" +
+            " and entry.account = bc.account and entry.id > bc.ref" +
+            " and entry.id <= :maxId" +
+            " and txn.journal = :journal" +
+            " and entry.layer in (:layers)" +
+            " group by entry.account.id" +
+            " having count(entry.id) >= :threshold"
+        );
+        Query uncached = session.createQuery (
+            "select entry.account.id, count(entry.id)" +
+            " from org.jpos.gl.GLEntry entry join entry.transaction txn" +
+            " where txn.journal = :journal" +
+            " and entry.id <= :maxId" +
+            " and entry.layer in (:layers)" +
+            " and not exists (select bc.ref from org.jpos.gl.BalanceCache bc" +
+            "  where bc.journal = txn.journal" +
+            "  and bc.account = entry.account" +
+            "  and bc.layers = :layerString)" +
+            " group by entry.account.id" +
+            " having count(entry.id) >= :threshold"
+        );
+        List<Map.Entry<Long,Long>> counts = new ArrayList<Map.Entry<Long,Long>>();
+        for (Query q : new Query[] { cached, uncached }) {
+            q.setParameter ("journal", journal);
+            q.setParameterList ("layers", toShortArray (layersCopy));
+            q.setString ("layerString", layersToString (layersCopy));
+            q.setLong ("threshold", threshold);
+            q.setLong ("maxId", maxId);
+            Iterator iter = q.list().iterator();
+            while (iter.hasNext()) {
+                Object[] row = (Object[]) iter.next();
+                counts.add (new AbstractMap.SimpleEntry<Long,Long> (
+                  (Long) row[0], ((Number) row[1]).longValue())
+                );
+            }
+        }
+        Collections.sort (counts, new Comparator<Map.Entry<Long,Long>>() {
+            public int compare (Map.Entry<Long,Long> a, Map.Entry<Long,Long> b) {
+                return Long.compare (b.getValue(), a.getValue());
+            }
+        });
+        Map<Long,Long> map = new LinkedHashMap<Long,Long>();
+        for (Map.Entry<Long,Long> entry : counts) {
+            if (maxResults > 0 && map.size() == maxResults)
+                break;
+            map.put (entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+    /**
+     * Number of entries posted to each final account in a GLEntry id range.
+     *
+     * @param journal the Journal
+     * @param layers the layers
+     * @param fromId lower GLEntry id (exclusive)
+     * @param toId upper GLEntry id (inclusive)
+     * @return map of final account id to entry count
+     * @throws GLException if user doesn't have CHECKPOINT permission on this journal.
+     * @see #getSafeMaxGLEntryId
+     */
+    public Map<Long,Long> getEntryCounts
+        (Journal journal, short[] layers, long fromId, long toId)
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.CHECKPOINT, journal);
+        Query q = session.createQuery (
+            "select entry.account.id, count(entry.id)" +
+            " from org.jpos.gl.GLEntry entry join entry.transaction txn" +
+            " where entry.id > :fromId and entry.id <= :toId" +
+            " and txn.journal = :journal" +
+            " and entry.layer in (:layers)" +
+            " group by entry.account.id"
+        );
+        q.setLong ("fromId", fromId);
+        q.setLong ("toId", toId);
+        q.setParameter ("journal", journal);
+        q.setParameterList ("layers", toShortArray (Arrays.copyOf (layers, layers.length)));
+        Map<Long,Long> map = new HashMap<Long,Long>();
+        Iterator iter = q.list().iterator();
+        while (iter.hasNext()) {
+            Object[] row = (Object[]) iter.next();
+            map.put ((Long) row[0], ((Number) row[1]).longValue());
+        }
+        return map;
     }
     public BigDecimal createBalanceCache
         (Journal journal, Account acct, short[] layers)
@@ -1326,6 +1708,63 @@ public class GLSession {
         checkPermission (GLPermission.POST, journal);
         AccountLock lck = getLock (journal, acct);
     }
+    /**
+     * Lock a set of accounts in a given journal.
+     *
+     * Locks are acquired in account id order, so that concurrent
+     * sessions locking overlapping sets of accounts don't deadlock.
+     *
+     * @param journal the journal.
+     * @param accounts the accounts.
+     * @throws GLException if user doesn't have POST permission on this journal.
+     * @throws HibernateException on database errors.
+     */
+    public void lock (Journal journal, Account[] accounts) 
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.POST, journal);
+        lockAccounts (journal, accounts);
+    }
+    /**
+     * Creates missing account locks for all final accounts in the
+     * journal's chart, so that posting never has to create them.
+     *
+     * @param journal the journal.
+     * @return number of account locks created.
+     * @throws GLException if user doesn't have POST permission on this journal.
+     * @throws HibernateException on database errors.
+     */
+    public int createAccountLocks (Journal journal) 
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.POST, journal);
+        Query q = session.createQuery (
+          "select acct.id from org.jpos.gl.FinalAccount acct where acct.root = :chart " +
+          "and not exists (from org.jpos.gl.AccountLock lck where lck.journal = :journal and lck.account = acct)"
+        );
+        q.setParameter ("chart", journal.getChart());
+        q.setParameter ("journal", journal);
+        List<Long> ids = q.list();
+        for (Long id : ids) {
+            session.save (
+              new AccountLock (journal, (Account) session.load (Account.class, id))
+            );
+        }
+        session.flush();
+        return ids.size();
+    }
+    /**
+     * @param journal the journal.
+     * @return account lock statistics for this journal, since the JVM started or the last reset.
+     */
+    public static LockStats getLockStats (Journal journal) {
+        synchronized (lockStats) {
+            LockStats stats = lockStats.get (journal.getId());
+            if (stats == null)
+                lockStats.put (journal.getId(), stats = new LockStats (journal.getName()));
+            return stats;
+        }
+    }
     
     /**
      * Open underlying Hibernate session.
@@ -1408,6 +1847,76 @@ public class GLSession {
         query.executeUpdate();
     }
 
+    /**
+     * Recomputes every balance cache in a journal out of its GLEntries
+     * and reports the ones whose stored balance doesn't match.
+     *
+     * @param journal the journal
+     * @return map of mismatched caches to their recomputed balance
+     * @throws HibernateException on database errors
+     * @throws GLException if user doesn't have CHECKPOINT permission on this journal.
+     */
+    public Map<BalanceCache,BigDecimal> verifyBalanceCaches (Journal journal)
+        throws HibernateException, GLException
+    {
+        checkPermission (GLPermission.CHECKPOINT, journal);
+        Map<BalanceCache,BigDecimal> map = new LinkedHashMap<BalanceCache,BigDecimal>();
+        for (List<BalanceCache> l : getBalanceCaches (journal, null).values()) {
+            for (BalanceCache c : l) {
+                Account acct = c.getAccount();
+                Map<Long,Account> accounts = new HashMap<Long,Account>();
+                accounts.put (acct.getId(), acct);
+                Map<Long,BigDecimal[]> balances = new HashMap<Long,BigDecimal[]>();
+                balances.put (acct.getId(), new BigDecimal[] { ZERO, Z });
+                if (c.getRef() > 0L) {
+                    applyEntrySums (balances, accounts, journal,
+                        Collections.singletonList (acct.getId()),
+                        layersFromString (c.getLayers()), c.getRef(), null, null
+                    );
+                }
+                BigDecimal balance = balances.get (acct.getId())[0];
+                if (balance.compareTo (c.getBalance()) != 0)
+                    map.put (c, balance);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * When enabled, <code>post</code> and <code>move</code> lock the
+     * affected accounts and bring their existing balance caches up to date
+     * within the posting transaction, so that current balances can be
+     * resolved without replaying entries.
+     *
+     * All postings to accounts with balance caches should use this option,
+     * unlocked concurrent postings may otherwise be skipped by the caches.
+     * @see #verifyBalanceCaches
+     * @param writeThroughBalanceCache true to maintain balance caches on post
+     */
+    public void setWriteThroughBalanceCache (boolean writeThroughBalanceCache) {
+        this.writeThroughBalanceCache = writeThroughBalanceCache;
+    }
+    public boolean isWriteThroughBalanceCache () {
+        return writeThroughBalanceCache;
+    }
+
+    /**
+     * Discards the compiled rule plans, so that RuleInfo is reloaded
+     * on the next <code>post</code> or <code>move</code>.
+     *
+     * Called automatically once a transaction that inserted, updated or
+     * deleted RuleInfo rows through Hibernate completes (see
+     * {@link MiniGLIntegrator}). Rules added or removed by other nodes,
+     * or directly in the database, are detected within five seconds;
+     * in-place updates made outside this JVM require calling this method.
+     */
+    public static void invalidateRulePlans () {
+        synchronized (rulePlans) {
+            rulePlans.clear();
+            rulePlansVersion++;
+        }
+    }
+
     public GLTransactionGroup createGroup (String name, List<GLTransaction> transactions) {
         GLTransactionGroup group = new GLTransactionGroup (name);
         Set txns = new HashSet();
@@ -1467,42 +1976,88 @@ public class GLSession {
     private AccountLock getLock (Journal journal, Account acct)
         throws HibernateException
     {
+        if (batchLocks != null) {
+            String k = journal.getId() + "." + acct.getId();
+            AccountLock lck = batchLocks.get (k);
+            if (lck == null) {
+                Map<String,AccountLock> m = batchLocks;
+                batchLocks = null;
+                try {
+                    lck = getLock (journal, acct);
+                } finally {
+                    batchLocks = m;
+                }
+                m.put (k, lck);
+            }
+            return lck;
+        }
         AccountLock key = new AccountLock (journal, acct);
+        long start = System.nanoTime();
         AccountLock lck = (AccountLock) session.get (AccountLock.class, key, LockOptions.UPGRADE);
-        if (lck == null)
-            session.buildLockRequest(LockOptions.UPGRADE).lock(journal); // need a journal level lock
-        lck = (AccountLock) session.get (AccountLock.class, key, LockOptions.UPGRADE); // try again
         if (lck == null) {
-            session.save (lck = key);
-            session.flush();
+            createLock (journal, acct);
+            lck = (AccountLock) session.get (AccountLock.class, key, LockOptions.UPGRADE); // try again
         }
+        getLockStats (journal).record (System.nanoTime() - start);
         return lck;
     }
+    /**
+     * Insert-if-absent an AccountLock row in the current transaction,
+     * under a savepoint so that losing the race against a concurrent
+     * creator doesn't abort the transaction (and no journal lock is needed).
+     * The insert goes straight through JDBC, so a duplicate key never
+     * reaches Hibernate and never marks the transaction rollback-only.
+     */
+    private void createLock (final Journal journal, final Account acct) {
+        session.flush();
+        session.doWork (new Work() {
+            public void execute (Connection c) throws SQLException {
+                Savepoint sp = c.setSavepoint();
+                try (PreparedStatement ps = c.prepareStatement (
+                  "insert into acctlock (journal, account) values (?, ?)"))
+                {
+                    ps.setLong (1, journal.getId());
+                    ps.setLong (2, acct.getId());
+                    ps.executeUpdate();
+                } catch (SQLException e) {
+                    if (!isUniqueViolation (e))
+                        throw e;
+                    c.rollback (sp); // already created by a concurrent session
+                    return;
+                }
+                c.releaseSavepoint (sp);
+            }
+        });
+    }
+    /**
+     * @return true if e (or a chained exception) is an integrity
+     * constraint violation (SQLState class 23).
+     */
+    private static boolean isUniqueViolation (SQLException e) {
+        for (SQLException ex = e; ex != null; ex = ex.getNextException()) {
+            String state = ex.getSQLState();
+            if (state != null && state.startsWith ("23"))
+                return true;
+        }
+        return false;
+    }
     private void createCheckpoint0 
-        (Journal journal, Account acct, Date date, int threshold, short[] layers) 
+        (Journal journal, Account acct, Date date, int threshold, short[] layers)
         throws HibernateException, GLException
     {
-        if (acct.isCompositeAccount()) {
-            Iterator iter = ((CompositeAccount) acct).getChildren().iterator();
-            while (iter.hasNext()) {
-                Account a = (Account) iter.next();
-                createCheckpoint0 (journal, a, date, threshold, layers);
-            }
+        getLock (journal, acct);
+        Date sod = Util.floor (date);   // sod = start of day
+        invalidateCheckpoints (journal, new Account[] { acct }, sod, sod, layers);
+        BigDecimal b[] = getBalances (journal, acct, sod, false, layers, 0L);
+        if (b[1].intValue() >= threshold) {
+            Checkpoint c = new Checkpoint ();
+            c.setDate (sod);
+            c.setBalance (b[0]);
+            c.setJournal (journal);
+            c.setAccount (acct);
+            c.setLayers (layersToString(layers));
+            session.save (c);
         }
-        else if (acct.isFinalAccount()) {
-            Date sod = Util.floor (date);   // sod = start of day
-            invalidateCheckpoints (journal, new Account[] { acct }, sod, sod, layers);
-            BigDecimal b[] = getBalances (journal, acct, sod, false, layers, 0L);
-            if (b[1].intValue() >= threshold) {
-                Checkpoint c = new Checkpoint ();
-                c.setDate (sod);
-                c.setBalance (b[0]);
-                c.setJournal (journal);
-                c.setAccount (acct);
-                c.setLayers (layersToString(layers));
-                session.save (c);
-            }
-        } 
     }
     private Account[] getAccounts (GLTransaction txn) {
         List list = txn.getEntries();
@@ -1514,11 +2069,14 @@ public class GLSession {
         }
         return accounts;
     }
-    private List getAccountHierarchyIds (Account acct) 
+    private List<Long> getAccountHierarchyIds (Account acct) 
         throws GLException
     {
         if (acct == null)
             throw new GLException ("Invalid entry - account is null");
+        List<Long> ancestors = getChartIndex (acct).getAncestors (acct.getId());
+        if (ancestors != null)
+            return ancestors;
         Account p = acct;
         List<Long> l = new ArrayList<Long>();
         while (p != null) {
@@ -1599,29 +2157,6 @@ public class GLSession {
         }
         return impl;
     }
-    private void addRules
-        (Map<String,Object> ruleMap, Journal journal, List acctHierarchy, int offset)
-        throws HibernateException, GLException
-    {
-        Query q = session.createQuery (
-            "from org.jpos.gl.RuleInfo where journal=:journal and account in (:accts) order by id"
-        );
-        q.setParameter ("journal", journal);
-        q.setParameterList ("accts", acctHierarchy, new LongType());
-        q.setCacheable (true);
-        q.setCacheRegion ("rules");
-        Iterator iter = q.iterate();
-
-        while (iter.hasNext()) {
-            RuleInfo ri  = (RuleInfo) iter.next();
-            RuleEntry k  = new RuleEntry (ri, ri.getAccount());
-            RuleEntry re = (RuleEntry) ruleMap.get (k.getKey());
-            if (re == null) 
-                ruleMap.put (k.getKey(), re = k);
-
-            re.addOffset (offset);
-        }
-    }
     private void applyRules (GLTransaction txn, Collection rules) 
         throws HibernateException, GLException
     {
@@ -1640,48 +2175,450 @@ public class GLSession {
         throws HibernateException, GLException
     {
         Map<String,Object> map = new LinkedHashMap<String,Object> ();
-        Journal journal   = txn.getJournal();
+        RulePlan plan = getRulePlan (txn.getJournal());
 
-        Query q = session.createQuery (
-          "from org.jpos.gl.RuleInfo where journal=:journal and account is null order by id"
-        );
-        q.setParameter ("journal", journal);
-        Iterator iter = q.list().iterator();
-        while (iter.hasNext()) {
-            RuleInfo  ri = (RuleInfo) iter.next();
+        for (RuleInfo ri : plan.getJournalRules()) {
             RuleEntry re = new RuleEntry (ri);
             map.put (re.getKey(), re);
         }
-        iter = txn.getEntries().iterator();
+        Iterator iter = txn.getEntries().iterator();
         for (int i=0; iter.hasNext(); i++) {
             GLEntry entry = (GLEntry) iter.next();
-            addRules (map, journal, 
-                getAccountHierarchyIds (entry.getAccount()), i);
+            List<Long> hierarchy = getAccountHierarchyIds (entry.getAccount());
+            for (RulePlan.Rule r : plan.getRules (hierarchy)) {
+                Account acct = entry.getAccount();
+                while (acct.getId() != r.accountId)
+                    acct = acct.getParent();
+                RuleEntry k  = new RuleEntry (r.ri, acct);
+                RuleEntry re = (RuleEntry) map.get (k.getKey());
+                if (re == null) 
+                    map.put (k.getKey(), re = k);
+                re.addOffset (i);
+            }
         }
         return map.values();
     }
-    private BigDecimal[] getChartBalances 
-        (Journal journal, CompositeAccount acct, Date date, boolean inclusive, short[] layers, long maxId)
+    private RulePlan getRulePlan (Journal journal) 
+        throws HibernateException
+    {
+        long version;
+        RulePlan cached;
+        synchronized (rulePlans) {
+            cached = rulePlans.get (journal.getId());
+            version = rulePlansVersion;
+        }
+        if (cached != null) {
+            long now = System.currentTimeMillis();
+            if (now - cached.getChecked() < RULE_PLAN_CHECK_INTERVAL)
+                return cached;
+            Object[] fp = (Object[]) session.createQuery (
+              "select count(*), max(id) from org.jpos.gl.RuleInfo where journal=:journal"
+            ).setParameter ("journal", journal).uniqueResult();
+            if (cached.matches ((Long) fp[0], (Long) fp[1])) {
+                cached.setChecked (now);
+                return cached;
+            }
+        }
+        Query q = session.createQuery (
+          "from org.jpos.gl.RuleInfo where journal=:journal order by id"
+        );
+        q.setParameter ("journal", journal);
+        RulePlan plan = new RulePlan (q.list());
+        synchronized (rulePlans) {
+            if (version == rulePlansVersion)
+                rulePlans.put (journal.getId(), plan);
+        }
+        return plan;
+    }
+    /**
+     * Computes the balances of a set of final accounts using a few
+     * aggregate queries instead of one query per account.
+     *
+     * Accounts are grouped by their lower bound (most recent checkpoint
+     * or balance cache) so that every group can be resolved by a single
+     * <code>group by</code> query.
+     *
+     * @return map of account id to {balance, entry count}
+     */
+    private Map<Long,BigDecimal[]> getFinalBalances
+        (Journal journal, Map<Long,Account> accounts, Date date, boolean inclusive, short[] layers, long maxId)
         throws HibernateException, GLException
     {
-        BigDecimal balance[] = { ZERO, ZERO };
-        Iterator iter = ((CompositeAccount) acct).getChildren().iterator();
-        while (iter.hasNext()) {
-            Account a = (Account) iter.next();
-            BigDecimal[] b = getBalances (journal, a, date, inclusive, layers, maxId);
-            if (a.isDebit()) {
-                balance[0] = balance[0].add (b[0]);
-                balance[1] = balance[1].add (b[1]);
-            } else if (a.isCredit()) {
-                balance[0] = balance[0].subtract (b[0]);
-                balance[1] = balance[1].subtract (b[1]);
+        Map<Long,BigDecimal[]> balances = new HashMap<Long,BigDecimal[]>();
+        if (accounts.isEmpty())
+            return balances;
+        checkPermission (GLPermission.CHECKPOINT, journal);
+
+        Map<Object,List<Long>> ranges = new LinkedHashMap<Object,List<Long>>();
+        Date end = null;
+        if (date != null) {
+            if (inclusive) {
+                end = Util.tomorrow (date);
             } else {
-                throw new GLException ("Account " + a + " has wrong type");
+                date = Util.floor (date);
+                end = date;
+            }
+            Map<Long,Checkpoint> checkpoints = getRecentCheckpoints
+                (journal, accounts.keySet(), date, inclusive, layers);
+            for (Long id : accounts.keySet()) {
+                Checkpoint chkp = checkpoints.get (id);
+                balances.put (id, new BigDecimal[] { chkp != null ? chkp.getBalance() : ZERO, Z });
+                addToRange (ranges, chkp != null ? chkp.getDate() : null, id);
+            }
+        } else {
+            Map<Long,BalanceCache> caches = getBalanceCaches (journal, accounts.keySet(), layers);
+            for (Long id : accounts.keySet()) {
+                BalanceCache bcache = caches.get (id);
+                if (bcache != null && (maxId == 0L || bcache.getRef() <= maxId)) {
+                    balances.put (id, new BigDecimal[] { bcache.getBalance(), Z });
+                    addToRange (ranges, bcache.getRef(), id);
+                } else {
+                    balances.put (id, new BigDecimal[] { ZERO, Z });
+                    addToRange (ranges, null, id);
+                }
+            }
+        }
+        for (Map.Entry<Object,List<Long>> range : ranges.entrySet()) {
+            for (List<Long> ids : partition (range.getValue())) {
+                applyEntrySums (
+                    balances, accounts, journal, ids, layers, maxId, end, range.getKey()
+                );
             }
-            // session.evict (a);  FIXME this conflicts with r251 (cascade=evict genearting a failed to lazily initialize a collection
+        }
+        return balances;
+    }
+    private void applyEntrySums
+        (Map<Long,BigDecimal[]> balances, Map<Long,Account> accounts,
+         Journal journal, List<Long> ids, short[] layers, long maxId, Date end, Object start)
+        throws HibernateException
+    {
+        StringBuilder qs = new StringBuilder (
+            "select entry.account.id, entry.credit, sum(entry.amount), count(entry.id)" +
+            " from org.jpos.gl.GLEntry entry join entry.transaction txn" +
+            " where entry.account.id in (:accts)" +
+            " and entry.layer in (:layers)" +
+            " and txn.journal = :journal"
+        );
+        if (maxId > 0L)
+            qs.append (" and entry.id <= :maxId");
+        if (end != null)
+            qs.append (" and txn.postDate < :end");
+        if (start instanceof Date)
+            qs.append (" and txn.postDate > :start");
+        else if (start instanceof Long)
+            qs.append (" and entry.id > :ref");
+        qs.append (" group by entry.account.id, entry.credit");
+
+        Query q = session.createQuery (qs.toString());
+        q.setParameterList ("accts", ids, new LongType());
+        q.setParameterList ("layers", toShortArray (layers));
+        q.setParameter ("journal", journal);
+        if (maxId > 0L)
+            q.setLong ("maxId", maxId);
+        if (end != null)
+            q.setParameter ("end", end);
+        if (start instanceof Date)
+            q.setParameter ("start", start);
+        else if (start instanceof Long)
+            q.setLong ("ref", (Long) start);
+
+        Iterator iter = q.list().iterator();
+        while (iter.hasNext()) {
+            Object[] row = (Object[]) iter.next();
+            Long id = (Long) row[0];
+            boolean credit = (Boolean) row[1];
+            BigDecimal amount = (BigDecimal) row[2];
+            long count = ((Number) row[3]).longValue();
+            Account acct = accounts.get (id);
+            BigDecimal[] b = balances.get (id);
+            if (credit ? acct.isCredit() : acct.isDebit())
+                b[0] = b[0].add (amount);
+            else
+                b[0] = b[0].subtract (amount);
+            b[1] = b[1].add (new BigDecimal (count));
+        }
+    }
+    private Map<Long,Checkpoint> getRecentCheckpoints
+        (Journal journal, Collection<Long> accounts, Date date, boolean inclusive, short[] layers)
+        throws HibernateException
+    {
+        Map<Long,Checkpoint> map = new HashMap<Long,Checkpoint>();
+        Query q = session.createQuery (
+            "from org.jpos.gl.Checkpoint cp" +
+            " where cp.journal = :journal" +
+            " and cp.layers = :layers" +
+            " and cp.account.id in (:accts)" +
+            " and cp.date = (select max(c.date) from org.jpos.gl.Checkpoint c" +
+            "  where c.journal = cp.journal" +
+            "  and c.account = cp.account" +
+            "  and c.layers = cp.layers" +
+            "  and c.date " + (inclusive ? "<=" : "<") + " :date)"
+        );
+        q.setParameter ("journal", journal);
+        q.setString ("layers", layersToString (layers));
+        q.setParameter ("date", date);
+        for (List<Long> ids : partition (accounts)) {
+            q.setParameterList ("accts", ids, new LongType());
+            Iterator iter = q.list().iterator();
+            while (iter.hasNext()) {
+                Checkpoint chkp = (Checkpoint) iter.next();
+                map.put (chkp.getAccount().getId(), chkp);
+            }
+        }
+        return map;
+    }
+    private Map<Long,BalanceCache> getBalanceCaches
+        (Journal journal, Collection<Long> accounts, short[] layers)
+        throws HibernateException
+    {
+        Map<Long,BalanceCache> map = new HashMap<Long,BalanceCache>();
+        Query q = session.createQuery (
+            "from org.jpos.gl.BalanceCache bc" +
+            " where bc.journal = :journal" +
+            " and bc.layers = :layers" +
+            " and bc.account.id in (:accts)"
+        );
+        q.setParameter ("journal", journal);
+        q.setString ("layers", layersToString (layers));
+        for (List<Long> ids : partition (accounts)) {
+            q.setParameterList ("accts", ids, new LongType());
+            Iterator iter = q.list().iterator();
+            while (iter.hasNext()) {
+                BalanceCache bcache = (BalanceCache) iter.next();
+                map.put (bcache.getAccount().getId(), bcache);
+            }
+        }
+        return map;
+    }
+    /**
+     * Adds up already computed final account balances following the
+     * account hierarchy (charts add debit and subtract credit children).
+     */
+    private BigDecimal[] sumBalances (Account acct, Map<Long,BigDecimal[]> balances)
+        throws GLException
+    {
+        if (acct.isFinalAccount())
+            return balances.get (acct.getId());
+
+        BigDecimal balance[] = { ZERO, Z };
+        if (acct.isChart()) {
+            balance[1] = ZERO;
+            for (Account a : acct.getChildren()) {
+                BigDecimal[] b = sumBalances (a, balances);
+                if (a.isDebit()) {
+                    balance[0] = balance[0].add (b[0]);
+                    balance[1] = balance[1].add (b[1]);
+                } else if (a.isCredit()) {
+                    balance[0] = balance[0].subtract (b[0]);
+                    balance[1] = balance[1].subtract (b[1]);
+                } else {
+                    throw new GLException ("Account " + a + " has wrong type");
+                }
+            }
+        } else {
+            for (Account a : acct.getChildren())
+                balance[0] = balance[0].add (sumBalances (a, balances)[0]);
         }
         return balance;
     }
+    /**
+     * @param journal the journal
+     * @param accounts accounts of interest, null for every account
+     * @return journal's balance caches indexed by account id
+     */
+    private Map<Long,List<BalanceCache>> getBalanceCaches (Journal journal, Account[] accounts)
+        throws HibernateException
+    {
+        Map<Long,List<BalanceCache>> map = new HashMap<Long,List<BalanceCache>>();
+        StringBuilder qs = new StringBuilder (
+            "from org.jpos.gl.BalanceCache bc where bc.journal = :journal"
+        );
+        if (accounts != null) {
+            if (accounts.length == 0)
+                return map;
+            qs.append (" and bc.account in (:accts)");
+        }
+        Query q = session.createQuery (qs.toString());
+        q.setParameter ("journal", journal);
+        if (accounts != null)
+            q.setParameterList ("accts", new HashSet<Account>(Arrays.asList(accounts)));
+        Iterator iter = q.list().iterator();
+        while (iter.hasNext()) {
+            BalanceCache c = (BalanceCache) iter.next();
+            Long id = c.getAccount().getId();
+            List<BalanceCache> l = map.get (id);
+            if (l == null)
+                map.put (id, l = new ArrayList<BalanceCache>());
+            l.add (c);
+        }
+        return map;
+    }
+    /**
+     * Adds (or removes) the impact of a transaction's entries already
+     * covered by a balance cache (entry id up to the cache's ref).
+     * Entries past the cache's ref are picked up at balance time.
+     */
+    private void adjustBalanceCaches
+        (Map<Long,List<BalanceCache>> caches, GLTransaction txn, boolean add)
+    {
+        if (caches.isEmpty())
+            return;
+        for (GLEntry entry : (List<GLEntry>) txn.getEntries()) {
+            List<BalanceCache> l = caches.get (entry.getAccount().getId());
+            if (l == null)
+                continue;
+            for (BalanceCache c : l) {
+                if (entry.getId() > 0L && entry.getId() <= c.getRef()
+                    && entry.hasLayers (layersFromString (c.getLayers())))
+                {
+                    c.setBalance (add ?
+                        c.getBalance().add (entry.getImpact()) :
+                        c.getBalance().subtract (entry.getImpact())
+                    );
+                }
+            }
+        }
+    }
+    /**
+     * Moves the ref of the balance caches affected by a just posted
+     * transaction up to its last entry, adding every entry in between.
+     */
+    private void updateBalanceCaches (Journal journal, List<GLTransaction> txns)
+        throws HibernateException
+    {
+        Map<Long,Account> accounts = new HashMap<Long,Account>();
+        for (GLTransaction txn : txns) {
+            for (Account acct : getAccounts (txn))
+                accounts.put (acct.getId(), acct);
+        }
+        Map<Long,List<BalanceCache>> caches = getBalanceCaches (
+          journal, accounts.values().toArray (new Account[accounts.size()])
+        );
+        if (caches.isEmpty())
+            return;
+        session.flush();
+        for (List<BalanceCache> l : caches.values()) {
+            for (BalanceCache c : l) {
+                short[] layers = layersFromString (c.getLayers());
+                Account acct = c.getAccount();
+                long maxId = 0L;
+                for (GLTransaction txn : txns) {
+                    for (GLEntry entry : (List<GLEntry>) txn.getEntries()) {
+                        if (acct.equals (entry.getAccount()) && entry.hasLayers (layers))
+                            maxId = Math.max (maxId, entry.getId());
+                    }
+                }
+                if (maxId <= c.getRef())
+                    continue;
+                Map<Long,Account> accts = new HashMap<Long,Account>();
+                accts.put (acct.getId(), acct);
+                Map<Long,BigDecimal[]> balances = new HashMap<Long,BigDecimal[]>();
+                balances.put (acct.getId(), new BigDecimal[] { c.getBalance(), Z });
+                applyEntrySums (balances, accts, journal,
+                    Collections.singletonList (acct.getId()), layers, maxId, null, c.getRef()
+                );
+                c.setBalance (balances.get (acct.getId())[0]);
+                c.setRef (maxId);
+            }
+        }
+    }
+    private void flushBatch (Journal journal, List<GLTransaction> txns)
+        throws HibernateException
+    {
+        if (txns.isEmpty())
+            return;
+        session.flush();
+        if (writeThroughBalanceCache)
+            updateBalanceCaches (journal, txns);
+        for (GLTransaction txn : txns)
+            session.evict (txn);
+        txns.clear();
+    }
+    /**
+     * Undated balances seen by the rules while running {@link #postAll},
+     * read once from the database and then updated in memory as
+     * transactions get posted.
+     */
+    private BigDecimal[] getBatchBalances (Journal journal, Account acct, short[] layers)
+        throws HibernateException, GLException
+    {
+        List<BatchBalance> l = batchBalances.get (acct.getId());
+        if (l == null)
+            batchBalances.put (acct.getId(), l = new ArrayList<BatchBalance>());
+        Arrays.sort (layers);
+        for (BatchBalance b : l) {
+            if (b.journalId == journal.getId() && Arrays.equals (b.layers, layers))
+                return new BigDecimal[] { b.balance[0], b.balance[1] };
+        }
+        Map<Long,List<BatchBalance>> m = batchBalances;
+        BigDecimal[] balance;
+        batchBalances = null;
+        try {
+            balance = getBalances (journal, acct, null, true, layers, 0L);
+        } finally {
+            batchBalances = m;
+        }
+        l.add (new BatchBalance (journal.getId(), layers, balance));
+        return new BigDecimal[] { balance[0], balance[1] };
+    }
+    private void updateBatchBalances (Journal journal, GLTransaction txn) {
+        for (GLEntry entry : (List<GLEntry>) txn.getEntries()) {
+            BigDecimal impact = entry.getImpact();
+            BigDecimal count = BigDecimal.ONE;
+            Account child = null;
+            for (Account a = entry.getAccount(); a != null; a = a.getParent()) {
+                if (child != null) {
+                    if (!a.isChart())
+                        count = Z;
+                    else if (child.isCredit()) {
+                        impact = impact.negate();
+                        count = count.negate();
+                    }
+                }
+                List<BatchBalance> l = batchBalances.get (a.getId());
+                if (l != null) {
+                    for (BatchBalance b : l) {
+                        if (b.journalId == journal.getId() && entry.hasLayers (b.layers)) {
+                            b.balance[0] = b.balance[0].add (impact);
+                            b.balance[1] = b.balance[1].add (count);
+                        }
+                    }
+                }
+                child = a;
+            }
+        }
+    }
+    /**
+     * Locks accounts in id order (to prevent deadlocks between
+     * concurrent postings touching the same set of accounts).
+     */
+    private void lockAccounts (Journal journal, Account[] accounts)
+        throws HibernateException
+    {
+        Map<Long,Account> sorted = new TreeMap<Long,Account>();
+        for (Account acct : accounts)
+            sorted.put (acct.getId(), acct);
+        for (Account acct : sorted.values())
+            getLock (journal, acct);
+    }
+    private void addToRange (Map<Object,List<Long>> ranges, Object start, Long id) {
+        List<Long> ids = ranges.get (start);
+        if (ids == null)
+            ranges.put (start, ids = new ArrayList<Long>());
+        ids.add (id);
+    }
+    private static <T> List<List<T>> partition (Collection<T> c) {
+        List<List<T>> l = new ArrayList<List<T>>();
+        List<T> chunk = null;
+        for (T t : c) {
+            if (chunk == null || chunk.size() == MAX_IN_LIST) {
+                chunk = new ArrayList<T>(Math.min (c.size(), MAX_IN_LIST));
+                l.add (chunk);
+            }
+            chunk.add (t);
+        }
+        return l;
+    }
     private Iterator findSummarizedGLEntries 
         (Journal journal, Date start, Date end, boolean credit, short layer)
         throws HibernateException, GLException
@@ -1737,9 +2674,12 @@ public class GLSession {
             q.setParameter ("start", start);
             q.setParameter ("endDate", end);
         }
+        Map<Long,List<BalanceCache>> caches = getBalanceCaches (journal, null);
         ScrollableResults sr = q.scroll(ScrollMode.FORWARD_ONLY);
         while (sr.next()) {
-            session.delete (sr.get(0));
+            GLTransaction txn = (GLTransaction) sr.get(0);
+            adjustBalanceCaches (caches, txn, false);
+            session.delete (txn);
         }
     }
     private static Short[] toShortArray (short[] i) {
@@ -1750,6 +2690,13 @@ public class GLSession {
             sa[j] = new Short(i[j]);
         return sa;
     }
+    private short[] layersFromString (String layers) {
+        StringTokenizer st = new StringTokenizer (layers, ".");
+        short[] sa = new short[st.countTokens()];
+        for (int i=0; st.hasMoreTokens(); i++)
+            sa[i] = Short.parseShort (st.nextToken());
+        return sa;
+    }
     private String layersToString (short[] layers) {
         StringBuffer sb = new StringBuffer();
         Arrays.sort (layers);
@@ -1767,12 +2714,28 @@ public class GLSession {
         GLEntry entry = (GLEntry) crit.uniqueResult();
         return entry != null ? entry.getId() : 0L;
     }
-    private long getSafeMaxGLEntryId() {
+    /**
+     * @return highest GLEntry id minus the safe window, entries below it
+     * are assumed to be committed (used as balance cache ref).
+     */
+    public long getSafeMaxGLEntryId() {
         return Math.max (getMaxGLEntryId()-SAFE_WINDOW, 0L);
     }
     public void overrideSafeWindow (long l) {
         this.SAFE_WINDOW = l;
     }
+    /**
+     * Final account balances are computed by the database using an
+     * aggregate query, unless the journal has a rule implementing
+     * {@link MaterializedEntriesRule}, in which case every GLEntry since
+     * the last checkpoint (or balance cache) is loaded and added up in memory.
+     *
+     * @param journal the journal
+     * @return true if balances on this journal are computed in memory
+     */
+    public boolean isMaterializeEntries (Journal journal) throws HibernateException {
+        return getRulePlan (journal).isMaterializeEntries();
+    }
     private void recurseChildren (Account acct, List<Long> list) {
         for (Account a : acct.getChildren()) {
             if (a.isFinalAccount())
@@ -1780,11 +2743,173 @@ public class GLSession {
             else recurseChildren (a, list);
         }
     }
+    private void recurseFinalAccounts (Account acct, Map<Long,Account> map) {
+        for (Account a : acct.getChildren()) {
+            if (a.isFinalAccount())
+                map.put (a.getId(), a);
+            else recurseFinalAccounts (a, map);
+        }
+    }
     private List<Long> getChildren (Account acct) {
-        List<Long> list = new ArrayList<Long>();
-        recurseChildren (acct, list);
+        List<Long> list = getChartIndex (acct).getLeaves (acct.getId());
+        if (list == null) {
+            list = new ArrayList<Long>();
+            recurseChildren (acct, list);
+        }
         return list;        
     }
+    /**
+     * @return restriction on GLEntry's account, matching all final accounts below acct if composite
+     */
+    private Criterion getAccountRestriction (Account acct) {
+        if (acct.isCompositeAccount()) {
+            List<Long> leaves = getChildren (acct);
+            if (!leaves.isEmpty()) {
+                Disjunction dis = Restrictions.disjunction();
+                for (List<Long> ids : partition (leaves))
+                    dis.add (Restrictions.in ("account.id", ids));
+                return dis;
+            }
+        }
+        return Restrictions.eq ("account", acct);
+    }
+    @SuppressWarnings("unchecked")
+    private <T extends Account> T getAccount (Class<T> clazz, Account chart, String code)
+        throws HibernateException
+    {
+        ChartIndex index = getChartIndex (chart.getId());
+        Long id = index.getId (code);
+        if (id != null) {
+            boolean isFinal = index.isFinal (id);
+            if (clazz == FinalAccount.class && !isFinal || clazz == CompositeAccount.class && isFinal)
+                return null;
+            T acct = (T) session.get (clazz, id);
+            if (acct != null)
+                return acct;
+        }
+        Query q = session.createQuery (
+            "from acct in class " + clazz.getName() + " where root=:chart and code=:code"
+        );
+        q.setLong ("chart", chart.getId());
+        q.setParameter ("code", code);
+        Iterator iter = q.list().iterator();
+        T acct = (T) (iter.hasNext() ? iter.next() : null);
+        if (acct != null || id != null)
+            invalidateChartIndexes(); // index is stale
+        return acct;
+    }
+    private ChartIndex getChartIndex (Account acct) throws HibernateException {
+        Account root = acct.getRoot();
+        return getChartIndex (root != null ? root.getId() : acct.getId());
+    }
+    private ChartIndex getChartIndex (long chartId) throws HibernateException {
+        ChartIndex cached;
+        long version;
+        synchronized (chartIndexes) {
+            cached = chartIndexes.get (chartId);
+            version = chartIndexesVersion;
+        }
+        if (cached != null) {
+            long now = System.currentTimeMillis();
+            if (now - cached.getChecked() < CHART_INDEX_CHECK_INTERVAL)
+                return cached;
+            Query q = session.createQuery (
+              "select count(*), max(acct.id) from org.jpos.gl.Account acct " +
+              "where acct.root.id = :chart or acct.id = :chart"
+            );
+            q.setLong ("chart", chartId);
+            Object[] fp = (Object[]) q.uniqueResult();
+            if (cached.matches ((Long) fp[0], (Long) fp[1])) {
+                cached.setChecked (now);
+                return cached;
+            }
+        }
+        List<Object[]> rows = new ArrayList<Object[]>();
+        Query q = session.createQuery (
+          "select acct.id, acct.code, acct.parent.id from org.jpos.gl.FinalAccount acct where acct.root.id = :chart"
+        );
+        q.setLong ("chart", chartId);
+        for (Object[] row : (List<Object[]>) q.list())
+            rows.add (new Object[] { row[0], row[1], row[2], Boolean.TRUE });
+        q = session.createQuery (
+          "select acct.id, acct.code, acct.parent.id from org.jpos.gl.CompositeAccount acct " +
+          "where acct.root.id = :chart or acct.id = :chart"
+        );
+        q.setLong ("chart", chartId);
+        for (Object[] row : (List<Object[]>) q.list())
+            rows.add (new Object[] { row[0], row[1], row[2], Boolean.FALSE });
+
+        ChartIndex index = new ChartIndex (chartId, rows);
+        synchronized (chartIndexes) {
+            if (version == chartIndexesVersion)
+                chartIndexes.put (chartId, index);
+        }
+        return index;
+    }
+    /**
+     * Discards the in-memory chart of accounts indexes used to resolve
+     * accounts. Called by <code>addAccount</code> and <code>addChart</code>,
+     * and again once their transaction commits or rolls back (see
+     * {@link MiniGLIntegrator}). Accounts added or removed by other nodes,
+     * or directly in the database, are detected within five seconds.
+     */
+    public static void invalidateChartIndexes () {
+        synchronized (chartIndexes) {
+            chartIndexes.clear();
+            chartIds.clear();
+            chartIndexesVersion++;
+        }
+    }
+
+    private static class BatchBalance {
+        long journalId;
+        short[] layers;
+        BigDecimal[] balance;
+
+        BatchBalance (long journalId, short[] layers, BigDecimal[] balance) {
+            this.journalId = journalId;
+            this.layers = layers;
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * Rejected transactions reported by {@link #postAll}, keyed by
+     * identity and kept in posting order.
+     */
+    private static class FailureMap extends AbstractMap<GLTransaction,GLException> {
+        private final Map<GLTransaction,Map.Entry<GLTransaction,GLException>> index
+          = new IdentityHashMap<GLTransaction,Map.Entry<GLTransaction,GLException>>();
+        private final List<Map.Entry<GLTransaction,GLException>> entries
+          = new ArrayList<Map.Entry<GLTransaction,GLException>>();
+
+        public GLException put (GLTransaction txn, GLException e) {
+            Map.Entry<GLTransaction,GLException> entry = index.get (txn);
+            if (entry != null)
+                return entry.setValue (e);
+            entry = new SimpleEntry<GLTransaction,GLException> (txn, e);
+            index.put (txn, entry);
+            entries.add (entry);
+            return null;
+        }
+        public GLException get (Object txn) {
+            Map.Entry<GLTransaction,GLException> entry = index.get (txn);
+            return entry != null ? entry.getValue() : null;
+        }
+        public boolean containsKey (Object txn) {
+            return index.containsKey (txn);
+        }
+        public Set<Map.Entry<GLTransaction,GLException>> entrySet() {
+            return new AbstractSet<Map.Entry<GLTransaction,GLException>>() {
+                public Iterator<Map.Entry<GLTransaction,GLException>> iterator() {
+                    return Collections.unmodifiableList (entries).iterator();
+                }
+                public int size() {
+                    return entries.size();
+                }
+            };
+        }
+    }
 
     public String toString() {
         return super.toString() + "[DB=" + db.toString() + "]";
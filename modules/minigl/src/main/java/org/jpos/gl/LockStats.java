@@ -0,0 +1,100 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Account lock statistics for a given journal.
+ *
+ * Every {@link AccountLock} acquisition is timed; acquisitions taking
+ * longer than {@link #CONTENTION_THRESHOLD} are counted as contended.
+ *
+ * @see GLSession#getLockStats(Journal)
+ */
+public class LockStats {
+    /** wait time (in nanoseconds) above which a lock is considered contended */
+    public static final long CONTENTION_THRESHOLD = 1000000L;
+
+    private String journal;
+    private AtomicLong locks     = new AtomicLong();
+    private AtomicLong contended = new AtomicLong();
+    private AtomicLong waitTime  = new AtomicLong();
+    private AtomicLong maxWait   = new AtomicLong();
+
+    public LockStats (String journal) {
+        super();
+        this.journal = journal;
+    }
+    /**
+     * @param nanos time it took to acquire an account lock
+     */
+    public void record (long nanos) {
+        locks.incrementAndGet();
+        waitTime.addAndGet (nanos);
+        if (nanos > CONTENTION_THRESHOLD)
+            contended.incrementAndGet();
+        long max;
+        while (nanos > (max = maxWait.get()) && !maxWait.compareAndSet (max, nanos))
+            ;
+    }
+    /**
+     * @return journal name
+     */
+    public String getJournal() {
+        return journal;
+    }
+    /**
+     * @return number of account locks acquired
+     */
+    public long getLocks() {
+        return locks.get();
+    }
+    /**
+     * @return number of account locks that had to wait
+     */
+    public long getContended() {
+        return contended.get();
+    }
+    /**
+     * @return total time (in milliseconds) spent acquiring account locks
+     */
+    public long getWaitTime() {
+        return waitTime.get() / 1000000L;
+    }
+    /**
+     * @return longest time (in milliseconds) spent acquiring an account lock
+     */
+    public long getMaxWait() {
+        return maxWait.get() / 1000000L;
+    }
+    public void reset() {
+        locks.set (0L);
+        contended.set (0L);
+        waitTime.set (0L);
+        maxWait.set (0L);
+    }
+    public String toString() {
+        return "LockStats[journal=" + journal 
+          + ",locks=" + getLocks()
+          + ",contended=" + getContended()
+          + ",wait=" + getWaitTime() 
+          + ",max=" + getMaxWait() + "]";
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+/**
+ * Marker for rules that rely on balances computed by loading every
+ * GLEntry since the last checkpoint (or balance cache), typically
+ * because custom GLEntry implementations change the way entries
+ * impact a balance.
+ *
+ * Balances on a journal having at least one such rule are computed
+ * in memory; all other journals use an aggregate query.
+ */
+public interface MaterializedEntriesRule extends JournalRule {
+}
@@ -0,0 +1,93 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+/**
+ * Registers (via META-INF/services) a post-commit listener that keeps
+ * GLSession's in-memory caches in sync with changes made through
+ * Hibernate in this JVM.
+ *
+ * Listeners run once the transaction completes, either committed or
+ * rolled back, so a cache rebuilt from uncommitted data never outlives
+ * the transaction that produced it.
+ */
+public class MiniGLIntegrator implements Integrator {
+    @Override
+    public void integrate
+        (Metadata metadata, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry)
+    {
+        EventListenerRegistry registry = serviceRegistry.getService (EventListenerRegistry.class);
+        Listener listener = new Listener();
+        registry.appendListeners (EventType.POST_COMMIT_INSERT, listener);
+        registry.appendListeners (EventType.POST_COMMIT_UPDATE, listener);
+        registry.appendListeners (EventType.POST_COMMIT_DELETE, listener);
+    }
+
+    @Override
+    public void disintegrate
+        (SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) { }
+
+    static class Listener implements
+        PostCommitInsertEventListener, PostCommitUpdateEventListener, PostCommitDeleteEventListener
+    {
+        @Override
+        public boolean requiresPostCommitHanding (EntityPersister persister) {
+            Class<?> clazz = persister.getMappedClass();
+            return RuleInfo.class.isAssignableFrom (clazz) || Account.class.isAssignableFrom (clazz);
+        }
+        @Override
+        public void onPostInsert (PostInsertEvent event) {
+            invalidate (event.getEntity());
+        }
+        @Override
+        public void onPostInsertCommitFailed (PostInsertEvent event) {
+            invalidate (event.getEntity());
+        }
+        @Override
+        public void onPostUpdate (PostUpdateEvent event) {
+            invalidate (event.getEntity());
+        }
+        @Override
+        public void onPostUpdateCommitFailed (PostUpdateEvent event) {
+            invalidate (event.getEntity());
+        }
+        @Override
+        public void onPostDelete (PostDeleteEvent event) {
+            invalidate (event.getEntity());
+        }
+        @Override
+        public void onPostDeleteCommitFailed (PostDeleteEvent event) {
+            invalidate (event.getEntity());
+        }
+        private void invalidate (Object entity) {
+            if (entity instanceof RuleInfo)
+                GLSession.invalidateRulePlans();
+            else if (entity instanceof Account)
+                GLSession.invalidateChartIndexes();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled view of a journal's {@link RuleInfo}s.
+ *
+ * Journal level rules and the rules applicable to a given final
+ * account (walking up its hierarchy) are resolved once and kept
+ * in memory, so that posting doesn't need to query RuleInfo.
+ *
+ * Only scalar RuleInfo properties (clazz, param, layers) are used
+ * once the plan has been compiled, so it can be safely shared
+ * across sessions.
+ *
+ * The number of rules and their max id are kept as a fingerprint,
+ * used by GLSession to detect rules added or removed by other nodes.
+ */
+class RulePlan {
+    private static final Comparator<Rule> BY_ID = new Comparator<Rule>() {
+        public int compare (Rule a, Rule b) {
+            return Long.compare (a.ri.getId(), b.ri.getId());
+        }
+    };
+    private List<RuleInfo> journalRules = new ArrayList<RuleInfo>();
+    private Map<Long,List<Rule>> accountRules = new HashMap<Long,List<Rule>>();
+    private Map<Long,List<Rule>> resolved = new ConcurrentHashMap<Long,List<Rule>>();
+    private boolean materializeEntries;
+    private long count;
+    private long maxId;
+    private volatile long checked = System.currentTimeMillis();
+
+    /**
+     * @param rules all RuleInfo rows for a given journal, ordered by id
+     */
+    RulePlan (List rules) {
+        Iterator iter = rules.iterator();
+        while (iter.hasNext()) {
+            RuleInfo ri = (RuleInfo) iter.next();
+            count++;
+            maxId = Math.max (maxId, ri.getId());
+            materializeEntries |= isMaterializedEntriesRule (ri.getClazz());
+            Account acct = ri.getAccount();
+            if (acct == null) {
+                journalRules.add (ri);
+            } else {
+                List<Rule> l = accountRules.get (acct.getId());
+                if (l == null)
+                    accountRules.put (acct.getId(), l = new ArrayList<Rule>());
+                l.add (new Rule (ri, acct.getId()));
+            }
+        }
+    }
+    /**
+     * @return journal level rules (no account), ordered by id
+     */
+    List<RuleInfo> getJournalRules() {
+        return journalRules;
+    }
+    /**
+     * @param hierarchy account ids, from the final account up to its chart
+     * @return rules defined on any account in the hierarchy, ordered by id
+     */
+    List<Rule> getRules (List<Long> hierarchy) {
+        Long id = hierarchy.get (0);
+        List<Rule> rules = resolved.get (id);
+        if (rules == null) {
+            rules = new ArrayList<Rule>();
+            for (Long l : hierarchy) {
+                List<Rule> r = accountRules.get (l);
+                if (r != null)
+                    rules.addAll (r);
+            }
+            Collections.sort (rules, BY_ID);
+            rules = Collections.unmodifiableList (rules);
+            resolved.put (id, rules);
+        }
+        return rules;
+    }
+
+    /**
+     * @return true if any rule implements {@link MaterializedEntriesRule}
+     */
+    boolean isMaterializeEntries() {
+        return materializeEntries;
+    }
+    /**
+     * @param count number of RuleInfo rows currently defined for the journal
+     * @param maxId max RuleInfo id (null if none)
+     * @return true if the plan was compiled from the same set of rules
+     */
+    boolean matches (long count, Long maxId) {
+        return this.count == count && this.maxId == (maxId != null ? maxId : 0L);
+    }
+    long getChecked() {
+        return checked;
+    }
+    void setChecked (long checked) {
+        this.checked = checked;
+    }
+
+    private static boolean isMaterializedEntriesRule (String clazz) {
+        try {
+            return MaterializedEntriesRule.class.isAssignableFrom (Class.forName (clazz));
+        } catch (ClassNotFoundException e) {
+            return false; // reported by GLSession when the rule is applied
+        }
+    }
+
+    static class Rule {
+        RuleInfo ri;
+        long accountId;
+
+        Rule (RuleInfo ri, long accountId) {
+            this.ri = ri;
+            this.accountId = accountId;
+        }
+    }
+}
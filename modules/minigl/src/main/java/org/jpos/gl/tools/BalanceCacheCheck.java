@@ -0,0 +1,97 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl.tools;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Transaction;
+
+import org.jpos.gl.BalanceCache;
+import org.jpos.gl.GLException;
+import org.jpos.gl.GLSession;
+import org.jpos.gl.Journal;
+
+/**
+ * Rebuilds a journal's balance caches out of its GLEntries and reports
+ * (and optionally fixes) the ones that don't match.
+ *
+ * @see GLSession#verifyBalanceCaches
+ * @see GLSession#setWriteThroughBalanceCache
+ */
+public class BalanceCacheCheck {
+    GLSession gls;
+
+    public BalanceCacheCheck () throws HibernateException, GLException {
+        super();
+        gls = new GLSession (System.getProperty ("user.name"));
+    }
+
+    /**
+     * @param journalName journal to verify
+     * @param fix true to overwrite mismatched caches with the recomputed balance
+     * @return number of mismatched caches
+     * @throws HibernateException on database errors
+     * @throws GLException on GL level errors (i.e. permissions)
+     */
+    public int check (String journalName, boolean fix)
+        throws HibernateException, GLException
+    {
+        Transaction tx = gls.beginTransaction();
+        Journal journal = gls.getJournal (journalName);
+        Map<BalanceCache,BigDecimal> mismatches = gls.verifyBalanceCaches (journal);
+        for (Map.Entry<BalanceCache,BigDecimal> entry : mismatches.entrySet()) {
+            BalanceCache c = entry.getKey();
+            System.out.println (
+                c.getAccount().getCode() + " [" + c.getLayers() + "] ref=" + c.getRef()
+                  + " cached=" + c.getBalance() + " actual=" + entry.getValue()
+            );
+            if (fix)
+                c.setBalance (entry.getValue());
+        }
+        if (fix)
+            tx.commit();
+        else
+            tx.rollback();
+        return mismatches.size();
+    }
+
+    public void close () {
+        gls.close();
+    }
+
+    public static void usage () {
+        System.out.println ("Usage: org.jpos.gl.tools.BalanceCacheCheck journal [--fix]");
+        System.exit (0);
+    }
+
+    public static void main (String[] args) {
+        if (args.length == 0)
+            usage ();
+        try {
+            BalanceCacheCheck checker = new BalanceCacheCheck();
+            int mismatches = checker.check (args[0], args.length > 1 && "--fix".equals (args[1]));
+            checker.close();
+            System.out.println (mismatches + " mismatched balance cache(s)");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
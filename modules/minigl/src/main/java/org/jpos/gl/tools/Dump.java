@@ -0,0 +1,303 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jpos.core.ConfigurationException;
+import org.jpos.ee.DB;
+import org.jpos.gl.*;
+import org.jpos.util.Tags;
+
+/**
+ * Compact binary backup/restore.
+ *
+ * <p>A dump is a sequence of length prefixed records
+ * (<code>type:byte length:int payload</code>) following a
+ * <code>MGLD</code> magic number and a version. Users, currencies,
+ * charts and journals are stored as their XML representation (see
+ * <a href="http://jpos.org/minigl.dtd">minigl.dtd</a>); transactions,
+ * which account for most of a ledger, use a binary encoding.</p>
+ *
+ * <p>Restoring a dump re-creates the schema.</p>
+ *
+ * @see Export
+ * @see Import
+ */
+public class Dump {
+    public static final int MAGIC   = 0x4D474C44; // MGLD
+    public static final int VERSION = 1;
+    static final byte XML         = 'X';
+    static final byte TRANSACTION = 'T';
+    static final byte END         = 'E';
+    private static final int FETCH_SIZE = 500;
+
+    GLSession gls;
+
+    public Dump () throws HibernateException, GLException {
+        super();
+        gls = new GLSession (System.getProperty ("user.name"));
+    }
+
+    /**
+     * @param os output stream
+     * @return number of transactions dumped
+     */
+    public long dump (OutputStream os) 
+        throws IOException, SQLException, HibernateException
+    {
+        DataOutputStream out = new DataOutputStream (new BufferedOutputStream (os, 65536));
+        XMLOutputter xml = new XMLOutputter (Format.getCompactFormat());
+        long count = 0L;
+        out.writeInt (MAGIC);
+        out.writeShort (VERSION);
+
+        Session sess = gls.open();
+        try {
+            String[] queries = new String[] {
+              "from gluser in class org.jpos.gl.GLUser order by id",
+              "from currency in class org.jpos.gl.Currency order by id",
+              "from acct in class org.jpos.gl.CompositeAccount where parent is null order by code",
+              "from journal in class org.jpos.gl.Journal order by id"
+            };
+            for (String query : queries) {
+                Iterator iter = sess.createQuery (query).list().iterator();
+                while (iter.hasNext()) {
+                    Object o = iter.next();
+                    Element elem;
+                    if (o instanceof GLUser)
+                        elem = ((GLUser) o).toXML();
+                    else if (o instanceof Currency)
+                        elem = ((Currency) o).toXML();
+                    else if (o instanceof Journal)
+                        elem = toXML (sess, (Journal) o);
+                    else
+                        elem = ((Account) o).toXML();
+                    writeRecord (out, XML, xml.outputString (elem).getBytes ("UTF-8"));
+                }
+            }
+            ScrollableResults rs = sess.createQuery (
+                "from transacc in class org.jpos.gl.GLTransaction order by id"
+            ).setReadOnly (true).setFetchSize (FETCH_SIZE).scroll (ScrollMode.FORWARD_ONLY);
+            try {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                while (rs.next()) {
+                    GLTransaction glt = (GLTransaction) rs.get (0);
+                    buf.reset();
+                    writeTransaction (new DataOutputStream (buf), glt);
+                    writeRecord (out, TRANSACTION, buf.toByteArray());
+                    sess.evict (glt);
+                    count++;
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            gls.close();
+        }
+        out.writeByte (END);
+        out.writeInt (0);
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Re-creates the schema and restores a dump.
+     * @param is input stream
+     * @return number of transactions restored
+     */
+    public long restore (InputStream is) 
+        throws IOException, SQLException, HibernateException, ParseException, 
+               JDOMException, DocumentException, GLException, ConfigurationException
+    {
+        DataInputStream in = new DataInputStream (new BufferedInputStream (is, 65536));
+        if (in.readInt() != MAGIC)
+            throw new IOException ("Invalid dump (bad magic number)");
+        int version = in.readShort();
+        if (version != VERSION)
+            throw new IOException ("Unsupported dump version " + version);
+
+        Import imp = new Import();
+        SAXBuilder builder = new SAXBuilder();
+        long count = 0L;
+        imp.importElement (null, new Element ("create-schema"));
+        Session sess = new DB().open();
+        try {
+            for (;;) {
+                byte type = in.readByte();
+                byte[] b = new byte[in.readInt()];
+                in.readFully (b);
+                if (type == END)
+                    break;
+                else if (type == XML) {
+                    Element elem = builder.build (new ByteArrayInputStream (b)).detachRootElement();
+                    imp.importElement (sess, elem);
+                }
+                else if (type == TRANSACTION) {
+                    readTransaction (imp, sess, new DataInputStream (new ByteArrayInputStream (b)));
+                    count++;
+                }
+                else
+                    throw new IOException ("Invalid record type " + type);
+            }
+            imp.endBatch (sess);
+        } catch (EOFException e) {
+            throw new IOException ("Truncated dump", e);
+        } finally {
+            sess.close();
+        }
+        return count;
+    }
+
+    private Element toXML (Session sess, Journal journal) throws HibernateException {
+        Element elem = journal.toXML();
+        Query q = sess.createQuery ("from ruleinfo in class org.jpos.gl.RuleInfo where journal=:journal order by id");
+        q.setParameter ("journal", journal);
+        Iterator iter = q.list().iterator();
+        while (iter.hasNext())
+            elem.addContent (((RuleInfo) iter.next()).toXML());
+        return elem;
+    }
+    private void writeRecord (DataOutputStream out, byte type, byte[] b) throws IOException {
+        out.writeByte (type);
+        out.writeInt (b.length);
+        out.write (b);
+    }
+    private void writeTransaction (DataOutputStream out, GLTransaction glt) throws IOException {
+        out.writeUTF (glt.getJournal().getName());
+        writeDate (out, glt.getTimestamp());
+        writeDate (out, glt.getPostDate());
+        writeString (out, glt.getDetail());
+        writeString (out, glt.getTags() != null ? glt.getTags().toString() : null);
+        List<GLEntry> entries = glt.getEntries();
+        out.writeShort (entries.size());
+        for (GLEntry entry : entries) {
+            out.writeUTF (entry.getAccount().getCode());
+            out.writeBoolean (entry.isCredit());
+            out.writeShort (entry.getLayer());
+            BigDecimal amount = entry.getAmount();
+            byte[] unscaled = amount.unscaledValue().toByteArray();
+            out.writeByte (amount.scale());
+            out.writeByte (unscaled.length);
+            out.write (unscaled);
+            writeString (out, entry.getDetail());
+            writeString (out, entry.getTags() != null ? entry.getTags().toString() : null);
+        }
+    }
+    private void readTransaction (Import imp, Session sess, DataInputStream in) 
+        throws IOException, SQLException, HibernateException
+    {
+        GLTransaction glt = new GLTransaction();
+        String journal = in.readUTF();
+        glt.setTimestamp (readDate (in));
+        glt.setPostDate (readDate (in));
+        glt.setDetail (readString (in));
+        glt.setTags (new Tags (readString (in)));
+        int n = in.readShort();
+        List<String> codes = new ArrayList<String>(n);
+        for (int i=0; i<n; i++) {
+            codes.add (in.readUTF());
+            GLEntry entry = in.readBoolean() ? new GLCredit() : new GLDebit();
+            entry.setLayer (in.readShort());
+            int scale = in.readByte();
+            byte[] unscaled = new byte[in.readByte()];
+            in.readFully (unscaled);
+            entry.setAmount (new BigDecimal (new BigInteger (unscaled), scale));
+            entry.setDetail (readString (in));
+            entry.setTags (new Tags (readString (in)));
+            glt.getEntries().add (entry);
+        }
+        imp.createTransaction (sess, glt, journal, codes);
+    }
+    private void writeDate (DataOutputStream out, Date d) throws IOException {
+        out.writeLong (d != null ? d.getTime() : Long.MIN_VALUE);
+    }
+    private Date readDate (DataInputStream in) throws IOException {
+        long l = in.readLong();
+        return l != Long.MIN_VALUE ? new Date (l) : null;
+    }
+    private void writeString (DataOutputStream out, String s) throws IOException {
+        out.writeBoolean (s != null);
+        if (s != null)
+            out.writeUTF (s);
+    }
+    private String readString (DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void usage () {
+        System.out.println ("Usage: org.jpos.gl.tools.Dump dump|restore filename");
+        System.exit (0);
+    }
+
+    public static void main (String[] args) {
+        if (args.length < 2)
+            usage ();
+        try {
+            if ("dump".equals (args[0])) {
+                OutputStream os = new FileOutputStream (args[1]);
+                try {
+                    new Dump().dump (os);
+                } finally {
+                    os.close();
+                }
+            } else if ("restore".equals (args[0])) {
+                InputStream is = new FileInputStream (args[1]);
+                try {
+                    new Dump().restore (is);
+                } finally {
+                    is.close();
+                }
+            } else
+                usage ();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
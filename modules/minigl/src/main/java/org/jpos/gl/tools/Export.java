@@ -28,10 +28,16 @@ import org.jdom2.Element;
 import org.jdom2.DocType;
 import org.jdom2.Comment;
 import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
+import org.jdom2.output.StAXStreamOutputter;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import java.sql.SQLException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.HibernateException;
 
@@ -51,6 +57,7 @@ import org.jpos.gl.Currency;
  * @author <a href="mailto:apr@jpos.org">Alejandro Revilla</a>
  */
 public class Export {
+    private static final int FETCH_SIZE = 500;
     GLSession gls;
 
     public Export () throws HibernateException, GLException {
@@ -82,15 +89,102 @@ public class Export {
     public void export (OutputStream os) 
         throws IOException, SQLException, HibernateException
     {
-        XMLOutputter out = new XMLOutputter (Format.getPrettyFormat ());
-        out.output (getDocument(), os);
+        try {
+            XMLStreamWriter writer = 
+                XMLOutputFactory.newInstance().createXMLStreamWriter (os, "UTF-8");
+            export (writer);
+        } catch (XMLStreamException e) {
+            throw new IOException (e);
+        }
     }
 
     public void export (PrintWriter writer) 
         throws IOException, SQLException, HibernateException
     {
-        XMLOutputter out = new XMLOutputter (Format.getPrettyFormat ());
-        out.output (getDocument(), writer);
+        try {
+            export (XMLOutputFactory.newInstance().createXMLStreamWriter (writer));
+        } catch (XMLStreamException e) {
+            throw new IOException (e);
+        }
+    }
+
+    /**
+     * Streams the export, one top level element at a time (same output
+     * as {@link #getDocument}, without building it in memory).
+     * @param writer StAX writer
+     */
+    public void export (XMLStreamWriter writer) 
+        throws XMLStreamException, SQLException, HibernateException
+    {
+        StAXStreamOutputter out = new StAXStreamOutputter (Format.getPrettyFormat ());
+        writer.writeStartDocument ("UTF-8", "1.0");
+        writer.writeCharacters ("\n");
+        writer.writeDTD ("<!DOCTYPE minigl SYSTEM \"http://jpos.org/dtd/minigl.dtd\">");
+        writer.writeCharacters ("\n");
+        writer.writeStartElement ("minigl");
+        writer.writeCharacters ("\n  ");
+        writer.writeComment ("jPOS MiniGL export $");
+        writer.writeCharacters ("\n  ");
+        writer.writeEmptyElement ("create-schema");
+
+        Session sess = gls.open();
+        try {
+            String[] queries = new String[] {
+              "from gluser in class org.jpos.gl.GLUser order by id",
+              "from currency in class org.jpos.gl.Currency order by id",
+              "from acct in class org.jpos.gl.CompositeAccount where parent is null order by code"
+            };
+            for (String query : queries) {
+                Iterator iter = sess.createQuery (query).list().iterator();
+                while (iter.hasNext()) {
+                    Object o = iter.next();
+                    Element elem;
+                    if (o instanceof GLUser)
+                        elem = ((GLUser) o).toXML();
+                    else if (o instanceof Currency)
+                        elem = ((Currency) o).toXML();
+                    else
+                        elem = ((Account) o).toXML();
+                    writeElement (writer, out, elem);
+                }
+            }
+            Iterator iter = sess.createQuery (
+              "from journal in class org.jpos.gl.Journal order by id"
+            ).list().iterator();
+            while (iter.hasNext()) {
+                Journal journal = (Journal) iter.next ();
+                Element journalElement = journal.toXML ();
+                addJournalRules (sess, journal, journalElement);
+                writeElement (writer, out, journalElement);
+            }
+            ScrollableResults rs = sess.createQuery (
+                "from transacc in class org.jpos.gl.GLTransaction order by id"
+            ).setReadOnly (true).setFetchSize (FETCH_SIZE).scroll (ScrollMode.FORWARD_ONLY);
+            try {
+                while (rs.next()) {
+                    GLTransaction glt = (GLTransaction) rs.get (0);
+                    writeElement (writer, out, glt.toXML (true));
+                    sess.evict (glt);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            gls.close ();
+        }
+        writer.writeCharacters ("\n");
+        writer.writeEndElement ();
+        writer.writeCharacters ("\n");
+        writer.writeEndDocument ();
+        writer.flush ();
+    }
+
+    private void writeElement 
+        (XMLStreamWriter writer, StAXStreamOutputter out, Element elem) 
+        throws XMLStreamException
+    {
+        writer.writeCharacters ("\n");
+        out.output (elem, writer);
     }
 
     private void addCharts (Element parentElement) 
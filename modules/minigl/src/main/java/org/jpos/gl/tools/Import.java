@@ -35,13 +35,23 @@ import org.jpos.gl.*;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -53,13 +63,18 @@ import java.util.Set;
 public class Import implements EntityResolver {
     Log log = LogFactory.getLog (Import.class);
     private static final String URL = "http://jpos.org/";
+    private static final int BATCH_SIZE = 500;
+    private Map<String,Long[]> journals = new HashMap<String,Long[]>();
+    private Map<String,Long> accounts = new HashMap<String,Long>();
+    private Transaction batch;
+    private int batchCount;
     public Import () throws HibernateException, GLException, IOException, ConfigurationException
     {
         super();
     }
 
     public static void usage () {
-        System.out.println ("Usage: org.jpos.gl.Import filename");
+        System.out.println ("Usage: org.jpos.gl.Import [--stream] filename");
         System.exit (0);
     }
 
@@ -87,6 +102,7 @@ public class Import implements EntityResolver {
             sess.flush ();
         }
         txn.commit();
+        GLSession.invalidateChartIndexes();
     }
     private void createCurrencies (Session sess, Iterator iter) 
         throws SQLException, HibernateException, ParseException
@@ -142,6 +158,7 @@ public class Import implements EntityResolver {
             );
         }
         txn.commit();
+        GLSession.invalidateRulePlans();
     }
     private void processChartChildren 
         (Session sess, CompositeAccount parent, Iterator iter) 
@@ -309,6 +326,119 @@ public class Import implements EntityResolver {
         List l = q.list();
         return (Journal) ((l.size() > 0) ? l.get (0) : null);
     }
+    /**
+     * Streaming version of createTransactions, used by
+     * {@link #parse(InputStream)} and {@link Dump}.
+     *
+     * Journals and accounts are resolved once and referenced by id,
+     * transactions are committed (and the session cleared) every
+     * BATCH_SIZE transactions. Call {@link #endBatch} when done.
+     *
+     * @param sess the session
+     * @param glt transaction, with its entries (without account)
+     * @param journalName journal name
+     * @param codes entries' account codes
+     */
+    void createTransaction 
+        (Session sess, GLTransaction glt, String journalName, List<String> codes) 
+        throws SQLException, HibernateException
+    {
+        if (batch == null) {
+            batch = sess.beginTransaction();
+            sess.setJdbcBatchSize (BATCH_SIZE);
+        }
+        Long[] journal = journals.get (journalName);
+        if (journal == null) {
+            Query q = sess.createQuery (
+              "select journal.id, journal.chart.id from org.jpos.gl.Journal journal where name = :name"
+            );
+            q.setParameter ("name", journalName);
+            List<Object[]> l = q.list();
+            if (l.size() == 0)
+                throw new IllegalArgumentException ("Invalid journal '" + journalName + "'");
+            journal = new Long[] { (Long) l.get(0)[0], (Long) l.get(0)[1] };
+            journals.put (journalName, journal);
+        }
+        glt.setJournal ((Journal) sess.load (Journal.class, journal[0]));
+        List<GLEntry> entries = glt.getEntries();
+        for (int i=0; i<entries.size(); i++) {
+            GLEntry entry = entries.get (i);
+            String key = journal[1] + "." + codes.get (i);
+            Long id = accounts.get (key);
+            if (id == null) {
+                Query q = sess.createQuery (
+                  "select acct.id from org.jpos.gl.FinalAccount acct where code = :code and acct.root.id = :root"
+                );
+                q.setParameter ("code", codes.get (i));
+                q.setLong ("root", journal[1]);
+                List l = q.list();
+                if (l.size() == 0)
+                    throw new IllegalArgumentException ("Invalid account '" + codes.get (i) + "'");
+                accounts.put (key, id = (Long) l.get (0));
+            }
+            entry.setAccount ((FinalAccount) sess.load (FinalAccount.class, id));
+            entry.setTransaction (glt);
+        }
+        sess.save (glt);
+        if (++batchCount % BATCH_SIZE == 0) {
+            sess.flush();
+            sess.clear();
+            batch.commit();
+            batch = sess.beginTransaction();
+        }
+    }
+    /**
+     * Commits pending transactions created by {@link #createTransaction}.
+     * @param sess the session
+     */
+    void endBatch (Session sess) throws HibernateException {
+        if (batch != null) {
+            sess.flush();
+            batch.commit();
+            sess.clear();
+            sess.setJdbcBatchSize (null);
+            batch = null;
+        }
+    }
+    /**
+     * Imports a top level element.
+     * @param sess the session
+     * @param elem create-schema, user, currency, chart-of-accounts, journal or transaction
+     */
+    void importElement (Session sess, Element elem) 
+        throws SQLException, HibernateException, ParseException, DocumentException
+    {
+        String name = elem.getName();
+        if (!"transaction".equals (name))
+            endBatch (sess);
+        Iterator iter = Collections.singletonList (elem).iterator();
+        if ("create-schema".equals (name))
+            createSchema ();
+        else if ("user".equals (name))
+            createUsers (sess, iter);
+        else if ("currency".equals (name))
+            createCurrencies (sess, iter);
+        else if ("chart-of-accounts".equals (name))
+            createCharts (sess, iter);
+        else if ("journal".equals (name))
+            createJournals (sess, iter);
+        else if ("transaction".equals (name)) {
+            GLTransaction glt = new GLTransaction (elem);
+            List<String> codes = new ArrayList<String>();
+            Iterator entries = elem.getChildren ("entry").iterator();
+            while (entries.hasNext()) {
+                Element e = (Element) entries.next();
+                GLEntry entry = "credit".equals (e.getAttributeValue ("type")) ?
+                    new GLCredit() : new GLDebit();
+                entry.fromXML (e);
+                glt.getEntries().add (entry);
+                codes.add (e.getAttributeValue ("account"));
+            }
+            createTransaction (sess, glt, elem.getAttributeValue ("journal"), codes);
+        }
+        else
+            throw new IllegalStateException ("Invalid element " + name);
+    }
     public InputSource resolveEntity (String publicId, String systemId) {
         if (systemId != null && systemId.startsWith (URL)) {
             log.debug ("trying to locate " + systemId + " in classpath");
@@ -355,12 +485,80 @@ public class Import implements EntityResolver {
         sess.close ();
     }
 
+    /**
+     * Streaming, non validating import.
+     *
+     * Reads the document using StAX, one top level element at a time,
+     * so that memory usage doesn't depend on the number of transactions.
+     *
+     * @param is input stream
+     */
+    public void parse (InputStream is)
+      throws XMLStreamException, SQLException, HibernateException,
+      ParseException, IOException, GLException, DocumentException 
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XMLStreamReader reader = factory.createXMLStreamReader (is);
+        // skip prolog (DOCTYPE, comments, processing instructions, whitespace)
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext())
+                throw new IllegalStateException ("Missing root element");
+            reader.next();
+        }
+        if (!"minigl".equals (reader.getLocalName ())) {
+            throw new IllegalStateException (
+                "Invalid root element "+reader.getLocalName ()
+            );
+        }
+        Session sess = null;
+        try {
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                Element elem = readElement (reader);
+                if (sess == null && !"create-schema".equals (elem.getName()))
+                    sess = new DB().open();
+                importElement (sess, elem);
+            }
+            if (sess != null)
+                endBatch (sess);
+        } finally {
+            reader.close();
+            if (sess != null)
+                sess.close();
+        }
+    }
+    private Element readElement (XMLStreamReader reader) throws XMLStreamException {
+        Element elem = new Element (reader.getLocalName());
+        for (int i=0; i<reader.getAttributeCount(); i++)
+            elem.setAttribute (reader.getAttributeLocalName (i), reader.getAttributeValue (i));
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                elem.addContent (readElement (reader));
+            else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)
+                elem.addContent (reader.getText());
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                break;
+        }
+        return elem;
+    }
+
     public static void main (String[] args) {
         if (args.length == 0) 
             usage ();
 
         try {
-            new Import().parse (args[0]);
+            if ("--stream".equals (args[0]) && args.length > 1) {
+                InputStream is = new BufferedInputStream (new FileInputStream (args[1]));
+                try {
+                    new Import().parse (is);
+                } finally {
+                    is.close();
+                }
+            }
+            else
+                new Import().parse (args[0]);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,332 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.q2.minigl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Transaction;
+import org.jpos.core.ConfigurationException;
+import org.jpos.gl.Account;
+import org.jpos.gl.Checkpoint;
+import org.jpos.gl.GLSession;
+import org.jpos.gl.Journal;
+import org.jpos.gl.Util;
+import org.jpos.iso.ISOUtil;
+import org.jpos.q2.QBeanSupport;
+
+/**
+ * Background balance cache and checkpoint maintenance.
+ *
+ * <p>On every run, finds the final accounts with the largest number of
+ * entries past their balance cache and refreshes their caches (and
+ * today's checkpoint) in small batches, each one in its own transaction,
+ * holding only account level locks.</p>
+ *
+ * <p>Entry counts are seeded once using {@link GLSession#getReplayCounts}
+ * and then kept up to date in memory, counting only the entries posted
+ * since the previous run (see {@link GLSession#getEntryCounts}); once an
+ * account's cache is refreshed, its count restarts from the new cache ref.</p>
+ *
+ * <pre>
+ * &lt;minigl-checkpoint class="org.jpos.q2.minigl.CheckpointService" logger="Q2"&gt;
+ *  &lt;property name="user"         value="admin" /&gt;
+ *  &lt;property name="journal"      value="MyJournal" /&gt;
+ *  &lt;property name="layers"       value="0" /&gt;
+ *  &lt;property name="threshold"    value="1000" /&gt;
+ *  &lt;property name="max-accounts" value="100" /&gt;
+ *  &lt;property name="batch-size"   value="10" /&gt;
+ *  &lt;property name="threads"      value="2" /&gt;
+ *  &lt;property name="interval"     value="60000" /&gt;
+ *  &lt;property name="delay"        value="100" /&gt;
+ *  &lt;property name="checkpoint"   value="true" /&gt;
+ * &lt;/minigl-checkpoint&gt;
+ * </pre>
+ */
+public class CheckpointService extends QBeanSupport implements CheckpointServiceMBean, Runnable {
+    private String user;
+    private String[] journals;
+    private List<short[]> layerSets;
+    private long threshold;
+    private int maxAccounts;
+    private int batchSize;
+    private int threads;
+    private long interval;
+    private long delay;
+    private boolean checkpoint;
+    private ExecutorService executor;
+    private Map<String,Tally> tallies;
+
+    private volatile long maxReplay;
+    private volatile long totalReplay;
+    private volatile int hotAccounts;
+    private AtomicLong accountsProcessed = new AtomicLong();
+    private AtomicLong errors = new AtomicLong();
+
+    @Override
+    protected void initService() throws ConfigurationException {
+        user = cfg.get ("user", System.getProperty ("user.name"));
+        journals = cfg.getAll ("journal");
+        if (journals.length == 0)
+            throw new ConfigurationException ("'journal' property not present");
+        layerSets = new ArrayList<short[]>();
+        String[] layers = cfg.getAll ("layers");
+        if (layers.length == 0)
+            layerSets.add (GLSession.LAYER_ZERO);
+        for (String l : layers)
+            layerSets.add (toLayers (l));
+        threshold   = cfg.getLong ("threshold", 1000L);
+        maxAccounts = cfg.getInt  ("max-accounts", 100);
+        batchSize   = Math.max (1, cfg.getInt ("batch-size", 10));
+        threads     = Math.max (1, cfg.getInt ("threads", 2));
+        interval    = cfg.getLong ("interval", 60000L);
+        delay       = cfg.getLong ("delay", 100L);
+        checkpoint  = cfg.getBoolean ("checkpoint", true);
+    }
+
+    @Override
+    protected void startService() {
+        tallies = new HashMap<String,Tally>();
+        executor = Executors.newFixedThreadPool (threads);
+        new Thread (this, getName()).start();
+    }
+
+    @Override
+    protected void stopService() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void run() {
+        while (running()) {
+            try {
+                runOnce();
+            } catch (Throwable t) {
+                getLog().warn (t);
+            }
+            ISOUtil.sleep (interval);
+        }
+    }
+
+    /**
+     * Finds hot accounts and refreshes their balance caches/checkpoints.
+     * @throws Exception on error
+     */
+    public void runOnce() throws Exception {
+        long max = 0L;
+        long total = 0L;
+        int hot = 0;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        GLSession gls = new GLSession (user);
+        try {
+            for (String journalName : journals) {
+                Journal journal = gls.getJournal (journalName);
+                for (short[] layers : layerSets) {
+                    Tally tally = getTally (journalName, layers);
+                    tally.update (gls, journal, layers);
+                    Map<Long,Long> counts = tally.getHot (threshold, maxAccounts);
+                    List<Long> batch = new ArrayList<Long>();
+                    for (Map.Entry<Long,Long> entry : counts.entrySet()) {
+                        max = Math.max (max, entry.getValue());
+                        total += entry.getValue();
+                        hot++;
+                        batch.add (entry.getKey());
+                        if (batch.size() == batchSize) {
+                            futures.add (executor.submit (new Batch (journalName, layers, tally, batch)));
+                            batch = new ArrayList<Long>();
+                        }
+                    }
+                    if (!batch.isEmpty())
+                        futures.add (executor.submit (new Batch (journalName, layers, tally, batch)));
+                }
+            }
+        } finally {
+            gls.close();
+        }
+        maxReplay = max;
+        totalReplay = total;
+        hotAccounts = hot;
+        for (Future<?> f : futures)
+            f.get();
+        if (hot > 0)
+            getLog().info ("hot-accounts=" + hot + ", max-replay=" + max + ", total-replay=" + total);
+    }
+
+    @Override
+    public long getMaxReplay() {
+        return maxReplay;
+    }
+
+    @Override
+    public long getTotalReplay() {
+        return totalReplay;
+    }
+
+    @Override
+    public int getHotAccounts() {
+        return hotAccounts;
+    }
+
+    @Override
+    public long getAccountsProcessed() {
+        return accountsProcessed.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private Tally getTally (String journalName, short[] layers) {
+        StringBuilder sb = new StringBuilder (journalName);
+        for (short l : layers)
+            sb.append ('.').append (l);
+        Tally tally = tallies.get (sb.toString());
+        if (tally == null)
+            tallies.put (sb.toString(), tally = new Tally());
+        return tally;
+    }
+
+    private short[] toLayers (String layers) {
+        StringTokenizer st = new StringTokenizer (layers, ", ");
+        short[] sa = new short[st.countTokens()];
+        for (int i=0; st.hasMoreTokens(); i++)
+            sa[i] = Short.parseShort (st.nextToken());
+        return sa;
+    }
+
+    /**
+     * Running count of entries past each account's balance cache,
+     * for a given journal and layers.
+     */
+    private static class Tally {
+        long lastId = -1L;
+        Map<Long,Long> counts = new ConcurrentHashMap<Long,Long>();
+
+        void update (GLSession gls, Journal journal, short[] layers) throws Exception {
+            long maxId = gls.getSafeMaxGLEntryId();
+            if (lastId < 0L) {
+                counts.putAll (gls.getReplayCounts (journal, layers, 1L, 0, maxId));
+            } else if (maxId > lastId) {
+                for (Map.Entry<Long,Long> entry : gls.getEntryCounts (journal, layers, lastId, maxId).entrySet()) {
+                    Long l = counts.get (entry.getKey());
+                    counts.put (entry.getKey(), (l != null ? l : 0L) + entry.getValue());
+                }
+            }
+            lastId = Math.max (lastId, maxId);
+        }
+
+        /**
+         * Count to keep for an account whose cache ref was just moved to
+         * <code>ref</code>: the entries past it already tallied (up to
+         * lastId), or minus those below it that the next update will add.
+         */
+        long recount (GLSession gls, Journal journal, short[] layers, Long id, long ref) throws Exception {
+            if (ref < lastId) {
+                Long l = gls.getEntryCounts (journal, layers, ref, lastId).get (id);
+                return l != null ? l : 0L;
+            } else if (ref > lastId) {
+                Long l = gls.getEntryCounts (journal, layers, lastId, ref).get (id);
+                return l != null ? -l : 0L;
+            }
+            return 0L;
+        }
+
+        Map<Long,Long> getHot (long threshold, int maxAccounts) {
+            List<Map.Entry<Long,Long>> hot = new ArrayList<Map.Entry<Long,Long>>();
+            for (Map.Entry<Long,Long> entry : counts.entrySet()) {
+                if (entry.getValue() >= threshold)
+                    hot.add (entry);
+            }
+            Collections.sort (hot, new Comparator<Map.Entry<Long,Long>>() {
+                public int compare (Map.Entry<Long,Long> a, Map.Entry<Long,Long> b) {
+                    return Long.compare (b.getValue(), a.getValue());
+                }
+            });
+            Map<Long,Long> map = new LinkedHashMap<Long,Long>();
+            for (Map.Entry<Long,Long> entry : hot) {
+                if (maxAccounts > 0 && map.size() == maxAccounts)
+                    break;
+                map.put (entry.getKey(), entry.getValue());
+            }
+            return map;
+        }
+    }
+
+    private class Batch implements Runnable {
+        String journalName;
+        short[] layers;
+        Tally tally;
+        List<Long> accounts;
+
+        Batch (String journalName, short[] layers, Tally tally, List<Long> accounts) {
+            this.journalName = journalName;
+            this.layers = layers;
+            this.tally = tally;
+            this.accounts = accounts;
+        }
+
+        @Override
+        public void run() {
+            if (!running())
+                return;
+            GLSession gls = null;
+            try {
+                gls = new GLSession (user);
+                Transaction tx = gls.beginTransaction();
+                Journal journal = gls.getJournal (journalName);
+                Date sod = Util.floor (new Date());
+                Map<Long,Long> counts = new HashMap<Long,Long>();
+                for (Long id : accounts) {
+                    Account acct = (Account) gls.session().get (Account.class, id);
+                    gls.createBalanceCache (journal, acct, layers);
+                    if (checkpoint) {
+                        Checkpoint c = gls.getRecentCheckpoint (journal, acct, sod, true, layers);
+                        if (c == null || !sod.equals (c.getDate()))
+                            gls.createCheckpoint (journal, acct, sod, 1, layers);
+                    }
+                    long ref = gls.getBalanceCache (journal, acct, layers).getRef();
+                    counts.put (id, tally.recount (gls, journal, layers, id, ref));
+                }
+                tx.commit();
+                tally.counts.putAll (counts);
+                accountsProcessed.addAndGet (accounts.size());
+            } catch (Throwable t) {
+                errors.incrementAndGet();
+                getLog().warn ("journal=" + journalName + ", accounts=" + accounts, t);
+            } finally {
+                if (gls != null)
+                    gls.close();
+            }
+            ISOUtil.sleep (delay);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.q2.minigl;
+
+import org.jpos.q2.QBeanSupportMBean;
+
+public interface CheckpointServiceMBean extends QBeanSupportMBean {
+    /**
+     * @return largest number of entries an undated balance query had to replay (last run)
+     */
+    long getMaxReplay();
+
+    /**
+     * @return number of entries replayed by all hot accounts found (last run)
+     */
+    long getTotalReplay();
+
+    /**
+     * @return number of accounts over the threshold (last run)
+     */
+    int getHotAccounts();
+
+    /**
+     * @return accounts cached/checkpointed since this service started
+     */
+    long getAccountsProcessed();
+
+    /**
+     * @return batches that failed since this service started
+     */
+    long getErrors();
+}
@@ -40,6 +40,70 @@ public class AccountLockTest extends TestBase {
         gls.lock (tj, cash);
         tx1.commit();
     }
+    public void testLockUncommittedAccount () throws Exception {
+        Transaction tx = gls.beginTransaction();
+        FinalAccount acct = new FinalAccount();
+        acct.setCode ("118");
+        acct.setDescription ("Not yet committed");
+        acct.setType (Account.DEBIT);
+        acct.setCreated (new Date());
+        gls.addAccount (gls.getCompositeAccount ("TestChart", "11"), acct);
+        gls.lock (tj, acct);
+        assertNotNull (gls.session().get (AccountLock.class, new AccountLock (tj, acct)));
+        tx.rollback();
+    }
+    public void testCreateAccountLocks () throws Exception {
+        Transaction tx = gls.beginTransaction();
+        gls.createAccountLocks (tj);
+        tx.commit();
+        tx = gls.beginTransaction();
+        assertEquals (0, gls.createAccountLocks (tj));
+        tx.commit();
+    }
+    public void testCreateLockRace () throws Exception {
+        Transaction tx = gls.beginTransaction();
+        gls.session().createQuery (
+          "delete from org.jpos.gl.AccountLock lck where lck.journal = :journal and lck.account = :account"
+        ).setParameter ("journal", tj).setParameter ("account", cash).executeUpdate();
+        tx.commit();
+
+        final Transaction tx1 = gls.beginTransaction();
+        gls.lock (tj, cash); // creates the lock row, not yet committed
+
+        GLSession gls2 = new GLSession("bob");
+        Transaction tx2 = gls2.beginTransaction();
+        Journal tj2 = gls2.getJournal ("TestJournal");
+        Account cash2 = gls2.getAccount ("TestChart", "111");
+        final Throwable[] failure = new Throwable[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep (1000);
+                    tx1.commit();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        t.start();
+        gls2.lock (tj2, cash2); // loses the insert race against gls
+        tx2.commit();
+        t.join();
+        assertNull ("tx1 commit failed: " + failure[0], failure[0]);
+
+        tx2 = gls2.beginTransaction();
+        assertNotNull (gls2.session().get (AccountLock.class, new AccountLock (tj2, cash2)));
+        tx2.commit();
+        gls2.close();
+    }
+    public void testLockAccounts () throws Exception {
+        Account bank = gls.getAccount ("TestChart", "113");
+        long locks = GLSession.getLockStats (tj).getLocks();
+        Transaction tx = gls.beginTransaction();
+        gls.lock (tj, new Account[] { bank, cash, bank });
+        tx.commit();
+        assertEquals (locks + 2, GLSession.getLockStats (tj).getLocks());
+    }
     public void testDeadLock () throws Exception {
         final Transaction tx1 = gls.beginTransaction();
         gls.lock (tj, cash);
@@ -37,6 +37,7 @@ public class AllTests {
         suite.addTest (new TestSuite (LayersTest.class));
         suite.addTest (new TestSuite (FindTransactionsTest.class));
         suite.addTest (new TestSuite (TransactionGroupTest.class));
+        suite.addTest (new TestSuite (ExportImportTest.class));
         return suite;
     }
 }
@@ -19,6 +19,10 @@
 package org.jpos.gl;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import org.hibernate.Transaction;
 
 public class BalanceTest extends TestBase {
@@ -74,12 +78,104 @@ public class BalanceTest extends TestBase {
     public void testCachedBalances() throws Exception {
         checkCurrentBalances();
     }
+    public void testMaterializedBalances() throws Exception {
+        assertFalse (gls.isMaterializeEntries (tj));
+        RuleInfo ri = new RuleInfo();
+        ri.setDescription ("Needs entries");
+        ri.setClazz (MaterializedRule.class.getName());
+        ri.setJournal (tj);
+        Transaction tx = gls.beginTransaction();
+        gls.session().save (ri);
+        tx.commit();
+        try {
+            assertTrue (gls.isMaterializeEntries (tj));
+            checkCurrentBalances();
+            checkBalancesByPostDate();
+        } finally {
+            tx = gls.beginTransaction();
+            gls.session().delete (ri);
+            tx.commit();
+        }
+        assertFalse (gls.isMaterializeEntries (tj));
+    }
+    public void testBatchedBalances() throws Exception {
+        short[] layers = new short[] { 0, 858 };
+        Transaction tx = gls.beginTransaction();
+        try {
+            // more leaves than fit in a single IN list
+            CompositeAccount many = new CompositeAccount();
+            many.setCode ("19");
+            many.setDescription ("Many leaves");
+            many.setType (Account.DEBIT);
+            many.setCreated (Util.parseDate ("20050101"));
+            gls.addAccount ((CompositeAccount) assets, many);
+            GLTransaction t1 = new GLTransaction ("Many leaves 1");
+            t1.setPostDate (Util.parseDate ("20050101"));
+            GLTransaction t2 = new GLTransaction ("Many leaves 2");
+            t2.setPostDate (Util.parseDate ("20050102"));
+            BigDecimal one = new BigDecimal ("1.00");
+            BigDecimal[] credits = { GLSession.ZERO, GLSession.ZERO };
+            for (int i=0; i<1005; i++) {
+                FinalAccount acct = new FinalAccount();
+                acct.setCode ("19." + i);
+                acct.setDescription ("Leaf " + i);
+                acct.setType (Account.DEBIT);
+                acct.setCreated (Util.parseDate ("20050101"));
+                gls.addAccount (many, acct);
+                int l = i % 2;
+                t1.createDebit (acct, one, null, layers[l]);
+                credits[l] = credits[l].add (one);
+                if (i % 100 == 0) {
+                    t2.createCredit (acct, one, null, layers[l]);
+                    t2.createDebit ((FinalAccount) aliceEquity, one, null, layers[l]);
+                }
+            }
+            t1.createCredit ((FinalAccount) bobEquity, credits[0], null, layers[0]);
+            t1.createCredit ((FinalAccount) aliceEquity, credits[1], null, layers[1]);
+            gls.post (tj, t1);
+            gls.post (tj, t2);
+            gls.createCheckpoint (tj, root, Util.parseDate ("20050101"), 1, layers);
+
+            Date[] dates = {
+                null, Util.parseDate ("20050101"), Util.parseDate ("20050102"), Util.parseDate ("20050103")
+            };
+            for (Account acct : new Account[] { many, assets, equity, root }) {
+                for (Date date : dates) {
+                    for (boolean inclusive : new boolean[] { true, false }) {
+                        assertBalances (acct.getCode() + " " + date + " " + inclusive,
+                            sumLeafBalances (tj, acct, date, inclusive, layers),
+                            gls.getBalances (tj, acct, date, inclusive, layers, 0L));
+                    }
+                }
+            }
+        } finally {
+            tx.rollback();
+        }
+    }
     public void testDeleteCache() throws Exception {
         final Transaction tx1 = gls.beginTransaction();
         gls.deleteBalanceCache (tj, cashUS, GLSession.LAYER_ZERO);       
         tx1.commit ();
 
     }
+    public void testReplayCounts() throws Exception {
+        Map<Long,Long> counts = gls.getReplayCounts (tj, GLSession.LAYER_ZERO, 1L, 0);
+        long total = 0L;
+        for (Map.Entry<Long,Long> entry : counts.entrySet()) {
+            Account acct = (Account) gls.session().get (Account.class, entry.getKey());
+            BigDecimal[] b = gls.getBalances (tj, acct, null, true, GLSession.LAYER_ZERO, 0L);
+            assertEquals (acct.getCode(), b[1].longValue(), (long) entry.getValue());
+        }
+        for (Long l : gls.getEntryCounts (tj, GLSession.LAYER_ZERO, 0L, Long.MAX_VALUE).values())
+            total += l;
+        assertEquals (
+            gls.getAccountDetail (tj, root, Util.parseDate ("20000101"), Util.parseDate ("20991231"),
+              GLSession.LAYER_ZERO).size(), total
+        );
+        // safe window is 0, so this bound includes every entry
+        assertEquals (counts, gls.getReplayCounts (tj, GLSession.LAYER_ZERO, 1L, 0, gls.getSafeMaxGLEntryId()));
+        assertTrue (gls.getReplayCounts (tj, GLSession.LAYER_ZERO, 1L, 0, 0L).isEmpty());
+    }
     public void testAccountDetailCashUS() throws Exception {
         AccountDetail detail = gls.getAccountDetail (
             tj, cashUS, 
@@ -125,6 +221,88 @@ public class BalanceTest extends TestBase {
         );
     }
 
+    public void testStreamedAccountDetailCashUS() throws Exception {
+        final List<GLEntry> entries = new ArrayList<GLEntry>();
+        AccountDetail detail = gls.getAccountDetail (
+            tj, cashUS, 
+            Util.parseDate ("20050101"),
+            Util.parseDate ("20050131"),
+            new short[] { 0 },
+            new GLEntryHandler() {
+                public boolean handle (GLEntry entry) {
+                    entries.add (entry);
+                    return true;
+                }
+            }
+        );
+        assertEquals (3, entries.size());
+        assertEquals (0, detail.size());
+        assertEquals (new BigDecimal("0.00"), detail.getInitialBalance());
+        assertEquals (new BigDecimal("25000.00"), detail.getFinalBalance());
+        assertEquals (detail.getFinalBalance(), entries.get (2).getBalance());
+    }
+    public void testStreamedAccountDetailAssets() throws Exception {
+        AccountDetail expected = gls.getAccountDetail (
+            tj, assets, 
+            Util.parseDate ("20050101"),
+            Util.parseDate ("20050131"),
+            new short[] { 0 }
+        );
+        final List<GLEntry> entries = new ArrayList<GLEntry>();
+        AccountDetail detail = gls.getAccountDetail (
+            tj, assets, 
+            Util.parseDate ("20050101"),
+            Util.parseDate ("20050131"),
+            new short[] { 0 },
+            new GLEntryHandler() {
+                public boolean handle (GLEntry entry) {
+                    entries.add (entry);
+                    return true;
+                }
+            }
+        );
+        assertEquals (expected.size(), entries.size());
+        assertEquals (expected.getFinalBalance(), detail.getFinalBalance());
+        assertEquals (expected.getDebits(), detail.getDebits());
+        assertEquals (expected.getCredits(), detail.getCredits());
+        for (int i=0; i<entries.size(); i++)
+            assertEquals (expected.getEntries().get (i).getId(), entries.get (i).getId());
+    }
+
+    public void testStreamedAccountDetailPages() throws Exception {
+        Transaction tx = gls.beginTransaction();
+        try {
+            List<GLTransaction> txns = new ArrayList<GLTransaction>();
+            for (int i=0; i<1200; i++) {
+                GLTransaction t = new GLTransaction ("Page test " + i);
+                t.setPostDate (Util.parseDate ("20050110"));
+                t.createDebit (cashUS, new BigDecimal ("1.00"));
+                t.createCredit ((FinalAccount) bobEquity, new BigDecimal ("1.00"));
+                txns.add (t);
+            }
+            assertTrue (gls.postAll (tj, txns).isEmpty());
+            gls.session().clear();
+            Date start = Util.parseDate ("20050101");
+            Date end = Util.parseDate ("20050131");
+            AccountDetail expected = gls.getAccountDetail (tj, cashUS, start, end, new short[] { 0 });
+            final List<Long> ids = new ArrayList<Long>();
+            AccountDetail detail = gls.getAccountDetail (
+                tj, cashUS, start, end, new short[] { 0 },
+                new GLEntryHandler() {
+                    public boolean handle (GLEntry entry) {
+                        ids.add (entry.getId());
+                        return true;
+                    }
+                }
+            );
+            assertEquals (1203, ids.size());
+            assertEquals (expected.getFinalBalance(), detail.getFinalBalance());
+            for (int i=0; i<ids.size(); i++)
+                assertEquals (expected.getEntries().get (i).getId(), (long) ids.get (i));
+        } finally {
+            tx.rollback();
+        }
+    }
     public void testMiniStatementCashPesos() throws Exception {
         AccountDetail detail = gls.getMiniStatement (
                 tj, cashPesos,
@@ -141,6 +319,32 @@ public class BalanceTest extends TestBase {
         );
     }
 
+    public void testAccountAddedWhileIndexCached() throws Exception {
+        GLSession gls2 = new GLSession ("bob");
+        try {
+            Transaction tx = gls.beginTransaction();
+            FinalAccount acct = new FinalAccount();
+            acct.setCode ("119");
+            acct.setDescription ("Cash in transit");
+            acct.setType (Account.DEBIT);
+            acct.setCreated (Util.parseDate ("20050101"));
+            gls.addAccount (gls.getCompositeAccount ("TestChart", "11"), acct);
+            // another session indexes the chart while 119 is uncommitted
+            int before = getDetail (gls2, "20050103").size();
+            tx.commit();
+
+            tx = gls.beginTransaction();
+            GLTransaction t = new GLTransaction ("Cash in transit");
+            t.setPostDate (Util.parseDate ("20050103"));
+            t.createDebit (acct, new BigDecimal ("1.00"));
+            t.createCredit ((FinalAccount) bobEquity, new BigDecimal ("1.00"));
+            gls.post (tj, t);
+            assertEquals (before + 1, getDetail (gls, "20050103").size());
+            tx.rollback();
+        } finally {
+            gls2.close();
+        }
+    }
     public void testGLTransactionImpact() {
         GLTransaction t = new GLTransaction("Test transaction");
         t.createDebit (cashUS, new BigDecimal("1000.00") , null, (short) 840);
@@ -151,6 +355,19 @@ public class BalanceTest extends TestBase {
     }
 
     // -----------------------------------------------------------------
+    public static class MaterializedRule implements MaterializedEntriesRule {
+        public void check (GLSession session, GLTransaction txn,
+                String param, Account account, int[] entryOffsets, short[] layers) { }
+    }
+    private AccountDetail getDetail (GLSession gls, String date) throws Exception {
+        return gls.getAccountDetail (
+            gls.getJournal ("TestJournal"),
+            gls.getAccount ("TestChart", "11"),
+            Util.parseDate (date),
+            Util.parseDate (date),
+            new short[] { 0 }
+        );
+    }
     private void checkBalancesByPostDate () throws Exception {
         assertEquals (
             new BigDecimal("0.00"),
@@ -0,0 +1,75 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl;
+
+import org.jpos.gl.tools.Export;
+import org.jpos.gl.tools.Import;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streaming Export/Import round trip: importing an export has to
+ * reproduce the same ledger (transaction ids are reassigned).
+ */
+@SuppressWarnings("unchecked")
+public class ExportImportTest extends TestBase {
+    public void testExportImport() throws Exception {
+        Map<String,Object> before = snapshot();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Export().export (os);
+        new Import().parse (new ByteArrayInputStream (os.toByteArray()));
+        gls.close();
+        gls = new GLSession ("bob");
+        assertEquals (before, snapshot());
+    }
+    private Map<String,Object> snapshot() throws Exception {
+        Map<String,Object> m = new TreeMap<String,Object>();
+        m.put ("transactions", count ("org.jpos.gl.GLTransaction"));
+        m.put ("entries", count ("org.jpos.gl.GLEntry"));
+        List<Short> layers = gls.session().createQuery (
+            "select distinct layer from org.jpos.gl.GLEntry"
+        ).list();
+        List<Journal> journals = gls.session().createQuery (
+            "from org.jpos.gl.Journal"
+        ).list();
+        List<FinalAccount> accounts = gls.session().createQuery (
+            "from org.jpos.gl.FinalAccount"
+        ).list();
+        for (Journal j : journals) {
+            for (FinalAccount acct : accounts) {
+                if (!acct.getRoot().equals (j.getChart()))
+                    continue;
+                for (Short layer : layers) {
+                    m.put (j.getName() + "/" + acct.getCode() + "/" + layer,
+                      gls.getBalance (j, acct, layer));
+                }
+            }
+        }
+        return m;
+    }
+    private Long count (String entity) {
+        return (Long) gls.session().createQuery (
+            "select count(*) from " + entity
+        ).uniqueResult();
+    }
+}
@@ -47,6 +47,40 @@ public class MoveTest extends TestBase {
             balance_h.add(amount), gls.getBalance (h, cashUS)
         );
     }
+    public void testMoveWithBalanceCache () throws Exception {
+        Journal j = gls.getJournal ("TestJournal");
+        Journal h = gls.getJournal ("HistoryJournal");
+        FinalAccount cashUS = gls.getFinalAccount ("TestChart", "111");
+        BigDecimal amount = new BigDecimal ("1000.00");
+        gls.overrideSafeWindow (0L);
+        gls.setWriteThroughBalanceCache (true);
+
+        Transaction tx = gls.beginTransaction();
+        gls.createBalanceCache (j, cashUS, GLSession.LAYER_ZERO);
+        gls.createBalanceCache (h, cashUS, GLSession.LAYER_ZERO);
+        GLTransaction txn = createTransaction ("Test Move with BalanceCache");
+        gls.post (j, txn);
+        tx.commit();
+
+        BigDecimal balance_j = gls.getBalance (j, cashUS);
+        BigDecimal balance_h = gls.getBalance (h, cashUS);
+        BalanceCache c = gls.getBalanceCache (j, cashUS, GLSession.LAYER_ZERO);
+        assertEquals (balance_j, c.getBalance());
+        assertEquals (((GLEntry) txn.getEntries().get(0)).getId(), c.getRef());
+
+        tx = gls.beginTransaction();
+        gls.move (txn, h);
+        tx.commit();
+
+        assertEquals (
+            balance_j.subtract(amount), gls.getBalance (j, cashUS)
+        );
+        assertEquals (
+            balance_h.add(amount), gls.getBalance (h, cashUS)
+        );
+        assertTrue (gls.verifyBalanceCaches (j).isEmpty());
+        assertTrue (gls.verifyBalanceCaches (h).isEmpty());
+    }
     private GLTransaction createTransaction (String desc) throws Exception {
         GLTransaction txn = new GLTransaction (desc);
         txn.setPostDate (new Date());
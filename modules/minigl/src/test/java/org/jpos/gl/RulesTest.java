@@ -18,7 +18,10 @@
 
 package org.jpos.gl;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.math.BigDecimal;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -195,7 +198,123 @@ public class RulesTest extends TestBase {
         fail ("GLException should have been raised");
     }
 
-    private GLTransaction createTransaction 
+    public void testRulePlanInvalidation () throws Exception {
+        BigDecimal amount = new BigDecimal ("1.00");
+        // compile and cache TestJournal's plan
+        Transaction tx = gls.beginTransaction();
+        gls.post (journal, createTransaction (
+            "prime rule plan", cashPesos, amount, cashUS, amount, (short) 0));
+        tx.rollback();
+
+        RuleInfo ri = new RuleInfo();
+        ri.setDescription ("Temporary max balance");
+        ri.setClazz ("org.jpos.gl.rule.FinalMaxBalance");
+        ri.setParam ("0.00");
+        ri.setJournal (journal);
+        ri.setAccount (cashPesos);
+        tx = gls.beginTransaction();
+        gls.session().save (ri);
+        tx.commit();
+
+        GLTransaction txn = 
+            createTransaction (
+                "check new rule", cashPesos, amount, 
+                cashUS, amount, (short) 0
+            );
+        tx = gls.beginTransaction();
+        try {
+            gls.post (journal, txn);
+            tx.commit();
+            fail ("GLException should have been raised");
+        } catch (GLException e) {
+            tx.rollback();
+            if (!e.getMessage().startsWith (
+                    "FinalMaxBalance rule for account 112 failed"))
+            {
+                fail ("Unexpected GLException " + e.getMessage());
+            }
+        } finally {
+            tx = gls.beginTransaction();
+            gls.session().delete (ri);
+            tx.commit();
+        }
+    }
+
+    public void testPostAll () throws Exception {
+        short[] layers = new short[] { 0, 1 };
+        BigDecimal minimum = new BigDecimal ("10.00");
+        BigDecimal available = 
+            gls.getBalance (journal, cashPesos, layers).subtract (minimum);
+        BigDecimal one = new BigDecimal ("1.00");
+        BigDecimal two = new BigDecimal ("2.00");
+
+        List<GLTransaction> txns = new ArrayList<GLTransaction>();
+        GLTransaction ok1 = createTransaction (
+            "bulk post 1", cashUS, available.subtract (one), cashPesos, available.subtract (one), (short) 0
+        );
+        GLTransaction belowMinimum = createTransaction (
+            "bulk post below minimum", cashUS, two, cashPesos, two, (short) 1
+        );
+        GLTransaction unbalanced = createTransaction (
+            "bulk post unbalanced", cashUS, two, cashPesos, one, (short) 0
+        );
+        GLTransaction ok2 = createTransaction (
+            "bulk post 2", cashUS, one, cashPesos, one, (short) 1
+        );
+        txns.add (ok1);
+        txns.add (belowMinimum);
+        txns.add (unbalanced);
+        txns.add (ok2);
+
+        Transaction tx = gls.beginTransaction();
+        try {
+            Map<GLTransaction,GLException> failures = gls.postAll (journal, txns, 2);
+            assertEquals (2, failures.size());
+            assertTrue (failures.get (belowMinimum).getMessage().startsWith (
+                "FinalMinBalance rule for account 112 failed"));
+            assertTrue (failures.get (unbalanced).getMessage().startsWith (
+                "Transaction does not balance"));
+            List<GLTransaction> rejected = new ArrayList<GLTransaction> (failures.keySet());
+            assertSame (belowMinimum, rejected.get (0));
+            assertSame (unbalanced, rejected.get (1));
+            assertTrue (ok1.getId() > 0L);
+            assertTrue (ok2.getId() > 0L);
+            assertEquals (minimum, gls.getBalance (journal, cashPesos, layers));
+        } finally {
+            tx.rollback();
+        }
+    }
+
+    public void testMaterializedCompositeBalance () throws Exception {
+        RuleInfo ri = new RuleInfo();
+        ri.setDescription ("Needs entries");
+        ri.setClazz (BalanceTest.MaterializedRule.class.getName());
+        ri.setJournal (journal);
+        Transaction tx = gls.beginTransaction();
+        gls.session().save (ri);
+        tx.commit();
+        try {
+            assertTrue (gls.isMaterializeEntries (journal));
+            short[] layers = new short[] { 0, 858 };
+            Date date = Util.parseDate ("20050101");
+            for (Account acct : new Account[] {
+                gls.getAccount ("TestChart", "1"), gls.getAccount ("TestChart", "11"), chart })
+            {
+                assertBalances (acct.getCode(),
+                    sumLeafBalances (journal, acct, null, true, layers),
+                    gls.getBalances (journal, acct, null, true, layers, 0L));
+                assertBalances (acct.getCode() + " at " + date,
+                    sumLeafBalances (journal, acct, date, true, layers),
+                    gls.getBalances (journal, acct, date, true, layers, 0L));
+            }
+        } finally {
+            tx = gls.beginTransaction();
+            gls.session().delete (ri);
+            tx.commit();
+        }
+    }
+
+    private GLTransaction createTransaction
         (String detail, 
          FinalAccount debitAccount, BigDecimal debitAmount, 
          FinalAccount creditAccount, BigDecimal creditAmount, short layer) 
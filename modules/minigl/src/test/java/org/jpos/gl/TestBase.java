@@ -18,6 +18,8 @@
 
 package org.jpos.gl;
 
+import java.math.BigDecimal;
+import java.util.Date;
 import junit.framework.TestCase;
 
 public abstract class TestBase extends TestCase {
@@ -32,6 +34,36 @@ public abstract class TestBase extends TestCase {
     public void tearDown () throws Exception {
         gls.close();
     }
+    /**
+     * Recomputes a balance the way GLSession used to, one final account
+     * at a time: charts add debit and subtract credit children (balance
+     * and entry count), composite accounts add up their children's balance.
+     */
+    protected BigDecimal[] sumLeafBalances
+        (Journal journal, Account acct, Date date, boolean inclusive, short[] layers)
+        throws Exception
+    {
+        if (acct.isFinalAccount())
+            return gls.getBalances (journal, acct, date, inclusive, layers, 0L);
+        BigDecimal[] balance = { GLSession.ZERO, GLSession.Z };
+        for (Account a : acct.getChildren()) {
+            BigDecimal[] b = sumLeafBalances (journal, a, date, inclusive, layers);
+            if (!acct.isChart()) {
+                balance[0] = balance[0].add (b[0]);
+            } else if (a.isDebit()) {
+                balance[0] = balance[0].add (b[0]);
+                balance[1] = balance[1].add (b[1]);
+            } else {
+                balance[0] = balance[0].subtract (b[0]);
+                balance[1] = balance[1].subtract (b[1]);
+            }
+        }
+        return balance;
+    }
+    protected void assertBalances (String message, BigDecimal[] expected, BigDecimal[] actual) {
+        assertTrue (message + " balance " + expected[0] + "/" + actual[0], expected[0].compareTo (actual[0]) == 0);
+        assertTrue (message + " entries " + expected[1] + "/" + actual[1], expected[1].compareTo (actual[1]) == 0);
+    }
     public void start () {
         start = checkpoint = System.currentTimeMillis();
     }
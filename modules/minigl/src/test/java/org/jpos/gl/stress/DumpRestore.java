@@ -0,0 +1,107 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.gl.stress;
+
+import org.jpos.gl.*;
+import org.jpos.gl.tools.Dump;
+import org.jpos.gl.tools.Export;
+import org.jpos.gl.tools.Import;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+
+/**
+ * Export/Import and Dump/Restore round trips over the stress ledger.
+ */
+public class DumpRestore extends TestBase {
+    public void testExportImport () throws Exception {
+        BigDecimal balance = getBalance();
+        long count = getTransactionCount();
+        File file = File.createTempFile ("minigl", ".xml");
+        try {
+            start ("testExportImport");
+            OutputStream os = new FileOutputStream (file);
+            try {
+                new Export().export (os);
+            } finally {
+                os.close();
+            }
+            checkPoint ("export  " + rate (count) + " txn/s (" + file.length() + " bytes)");
+            InputStream is = new FileInputStream (file);
+            try {
+                new Import().parse (is);
+            } finally {
+                is.close();
+            }
+            checkPoint ("import  " + rate (count) + " txn/s");
+            end ("testExportImport");
+        } finally {
+            file.delete();
+        }
+        verify (balance, count);
+    }
+    public void testDumpRestore () throws Exception {
+        BigDecimal balance = getBalance();
+        long count = getTransactionCount();
+        File file = File.createTempFile ("minigl", ".dump");
+        try {
+            start ("testDumpRestore");
+            OutputStream os = new FileOutputStream (file);
+            try {
+                assertEquals (count, new Dump().dump (os));
+            } finally {
+                os.close();
+            }
+            checkPoint ("dump    " + rate (count) + " txn/s (" + file.length() + " bytes)");
+            InputStream is = new FileInputStream (file);
+            try {
+                assertEquals (count, new Dump().restore (is));
+            } finally {
+                is.close();
+            }
+            checkPoint ("restore " + rate (count) + " txn/s");
+            end ("testDumpRestore");
+        } finally {
+            file.delete();
+        }
+        verify (balance, count);
+    }
+    private void verify (BigDecimal balance, long count) throws Exception {
+        gls.close();
+        gls = new GLSession ("bob");
+        assertEquals (count, getTransactionCount());
+        assertEquals (balance, getBalance());
+    }
+    private BigDecimal getBalance () throws Exception {
+        Journal tj = gls.getJournal ("TestJournal");
+        return gls.getBalance (tj, gls.getCompositeAccount ("TestChart", "23"));
+    }
+    private long getTransactionCount () throws Exception {
+        return (Long) gls.session().createQuery (
+            "select count(*) from org.jpos.gl.GLTransaction"
+        ).uniqueResult();
+    }
+    private long rate (long count) {
+        long elapsed = Math.max (1L, System.currentTimeMillis() - checkpoint);
+        return count * 1000L / elapsed;
+    }
+}
@@ -30,6 +30,7 @@ public class StressTests {
         suite.addTest (new TestSuite (CreateAccounts.class));
         suite.addTest (new TestSuite (CreateTransactions.class));
         suite.addTest (new TestSuite (SummarizeTransactions.class));
+        suite.addTest (new TestSuite (DumpRestore.class));
         return suite;
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space.jmh;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.space.BinaryRequestCodec;
+import org.jpos.space.ReplicatedSpace;
+import org.jpos.space.RequestCodec;
+import org.jpos.space.SerializingRequestCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode speed of the ReplicatedSpace request codecs.
+ * Encoded sizes are printed at setup time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestCodecBenchmark {
+    @Param({ "binary", "serializing" })
+    public String codecName;
+
+    @Param({ "string", "bytes", "long", "isomsg" })
+    public String valueType;
+
+    private RequestCodec codec;
+    private ReplicatedSpace.Request request;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ISOException {
+        codec = "binary".equals (codecName) ? new BinaryRequestCodec() : new SerializingRequestCodec();
+        request = new ReplicatedSpace.Request (1 /* OUT */, "session.0123456789", value(), 60000L);
+        encoded = codec.encode (request);
+        System.out.println ();
+        System.out.println (codecName + "/" + valueType + " encoded size: " + encoded.length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode (request);
+    }
+
+    @Benchmark
+    public ReplicatedSpace.Request decode() throws IOException {
+        return codec.decode (encoded, 0, encoded.length);
+    }
+
+    private Object value() throws ISOException {
+        switch (valueType) {
+            case "bytes":
+                return new byte[256];
+            case "long":
+                return System.currentTimeMillis();
+            case "isomsg":
+                ISOMsg m = new ISOMsg ("0200");
+                m.set (2, "4111111111111111");
+                m.set (3, "000000");
+                m.set (4, "000000010000");
+                m.set (11, "000001");
+                m.set (41, "29110001");
+                m.set (42, "001001002003004");
+                return m;
+            default:
+                return "The quick brown fox jumps over the lazy dog";
+        }
+    }
+}
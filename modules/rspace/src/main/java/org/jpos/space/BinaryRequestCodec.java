@@ -0,0 +1,220 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import org.jpos.iso.ISOMsg;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Compact binary {@link RequestCodec}.
+ *
+ * Strings, byte arrays, ISOMsgs, UUIDs and Integer/Long/Double/Boolean
+ * values are written with a one byte tag followed by their raw contents.
+ * Other objects are Java serialized.
+ *
+ * <pre>
+ * request := version(1) type(1) seq(varlong) timeout(varlong) uuid key value
+ * uuid    := 0 | 1 msb(8) lsb(8)
+ * </pre>
+ */
+public class BinaryRequestCodec implements RequestCodec {
+    private static final byte VERSION = 1;
+
+    static final byte NULL       = 0;
+    static final byte STRING     = 1;
+    static final byte BYTES      = 2;
+    static final byte INT        = 3;
+    static final byte LONG       = 4;
+    static final byte DOUBLE     = 5;
+    static final byte BOOLEAN    = 6;
+    static final byte UUID_TAG   = 7;
+    static final byte ISOMSG     = 8;
+    static final byte REQUESTS   = 9;
+    static final byte SERIALIZED = 10;
+
+    @Override
+    public byte[] encode (ReplicatedSpace.Request r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream (128);
+        DataOutputStream out = new DataOutputStream (baos);
+        out.writeByte (VERSION);
+        writeRequest (out, r);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    @Override
+    public ReplicatedSpace.Request decode (byte[] b, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream (new ByteArrayInputStream (b, offset, length));
+        byte v = in.readByte();
+        if (v != VERSION)
+            throw new IOException ("Unsupported codec version " + v);
+        return readRequest (in);
+    }
+
+    private void writeRequest (DataOutputStream out, ReplicatedSpace.Request r) throws IOException {
+        out.writeByte (r.type);
+        writeVarLong (out, r.seq);
+        writeVarLong (out, r.timeout);
+        if (r.uuid != null) {
+            out.writeByte (1);
+            out.writeLong (r.uuid.getMostSignificantBits());
+            out.writeLong (r.uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte (0);
+        }
+        writeValue (out, r.key);
+        writeValue (out, r.value);
+    }
+
+    private ReplicatedSpace.Request readRequest (DataInputStream in) throws IOException {
+        ReplicatedSpace.Request r = new ReplicatedSpace.Request();
+        r.type = in.readUnsignedByte();
+        r.seq = readVarLong (in);
+        r.timeout = readVarLong (in);
+        if (in.readByte() != 0)
+            r.uuid = new UUID (in.readLong(), in.readLong());
+        r.key = readValue (in);
+        r.value = readValue (in);
+        return r;
+    }
+
+    private void writeValue (DataOutputStream out, Object o) throws IOException {
+        if (o == null) {
+            out.writeByte (NULL);
+        } else if (o instanceof String) {
+            out.writeByte (STRING);
+            writeBytes (out, ((String) o).getBytes (StandardCharsets.UTF_8));
+        } else if (o instanceof byte[]) {
+            out.writeByte (BYTES);
+            writeBytes (out, (byte[]) o);
+        } else if (o instanceof Integer) {
+            out.writeByte (INT);
+            out.writeInt ((Integer) o);
+        } else if (o instanceof Long) {
+            out.writeByte (LONG);
+            out.writeLong ((Long) o);
+        } else if (o instanceof Double) {
+            out.writeByte (DOUBLE);
+            out.writeDouble ((Double) o);
+        } else if (o instanceof Boolean) {
+            out.writeByte (BOOLEAN);
+            out.writeBoolean ((Boolean) o);
+        } else if (o instanceof UUID) {
+            out.writeByte (UUID_TAG);
+            out.writeLong (((UUID) o).getMostSignificantBits());
+            out.writeLong (((UUID) o).getLeastSignificantBits());
+        } else if (o.getClass() == ISOMsg.class) {
+            // subclasses may carry extra state, let serialization handle them
+            out.writeByte (ISOMSG);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream (baos)) {
+                ((ISOMsg) o).writeExternal (oos);
+            }
+            writeBytes (out, baos.toByteArray());
+        } else if (o instanceof ReplicatedSpace.Request[]) {
+            ReplicatedSpace.Request[] reqs = (ReplicatedSpace.Request[]) o;
+            out.writeByte (REQUESTS);
+            writeVarLong (out, reqs.length);
+            for (ReplicatedSpace.Request r : reqs)
+                writeRequest (out, r);
+        } else {
+            out.writeByte (SERIALIZED);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream (baos)) {
+                oos.writeObject (o);
+            }
+            writeBytes (out, baos.toByteArray());
+        }
+    }
+
+    private Object readValue (DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String (readBytes (in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes (in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case UUID_TAG:
+                return new UUID (in.readLong(), in.readLong());
+            case ISOMSG:
+                ISOMsg m = new ISOMsg();
+                try (ObjectInputStream ois = new ObjectInputStream (new ByteArrayInputStream (readBytes (in)))) {
+                    m.readExternal (ois);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException (e);
+                }
+                return m;
+            case REQUESTS:
+                ReplicatedSpace.Request[] reqs = new ReplicatedSpace.Request[(int) readVarLong (in)];
+                for (int i=0; i<reqs.length; i++)
+                    reqs[i] = readRequest (in);
+                return reqs;
+            case SERIALIZED:
+                try (ObjectInputStream ois = new ObjectInputStream (new ByteArrayInputStream (readBytes (in)))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException (e);
+                }
+        }
+        throw new IOException ("Invalid tag " + tag);
+    }
+
+    private static void writeBytes (DataOutputStream out, byte[] b) throws IOException {
+        writeVarLong (out, b.length);
+        out.write (b);
+    }
+
+    private static byte[] readBytes (DataInputStream in) throws IOException {
+        byte[] b = new byte[(int) readVarLong (in)];
+        in.readFully (b);
+        return b;
+    }
+
+    private static void writeVarLong (DataOutputStream out, long l) throws IOException {
+        while ((l & ~0x7FL) != 0) {
+            out.writeByte ((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.writeByte ((int) l);
+    }
+
+    private static long readVarLong (DataInputStream in) throws IOException {
+        long l = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            l |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return l;
+        }
+        throw new IOException ("Malformed varlong");
+    }
+}
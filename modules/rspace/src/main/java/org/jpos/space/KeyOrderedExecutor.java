@@ -0,0 +1,142 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs tasks on a fixed set of single threaded lanes, picking the lane
+ * by key hash, so tasks for the same key run in submission order.
+ *
+ * Each lane has a bounded queue; when it is full the {@link OverflowPolicy}
+ * decides whether the submitter blocks or the task is dropped.
+ */
+public class KeyOrderedExecutor {
+    public enum OverflowPolicy {
+        /**
+         * the submitting thread waits for room in the lane; never use it when
+         * the submitter is a receive thread a task may depend on
+         */
+        BLOCK,
+        /** the task is discarded and counted as dropped */
+        DROP
+    }
+
+    private final ThreadPoolExecutor[] lanes;
+    private final OverflowPolicy policy;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder latency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * @param name thread name prefix
+     * @param threads number of lanes
+     * @param queueLimit max pending tasks per lane
+     * @param policy what to do when a lane is full
+     */
+    public KeyOrderedExecutor (String name, int threads, int queueLimit, OverflowPolicy policy) {
+        this.policy = policy;
+        lanes = new ThreadPoolExecutor[Math.max (1, threads)];
+        for (int i=0; i<lanes.length; i++) {
+            final String threadName = name + "-" + i;
+            lanes[i] = new ThreadPoolExecutor (
+              1, 1, 0L, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(Math.max (1, queueLimit)),
+              r -> {
+                  Thread t = new Thread (r, threadName);
+                  t.setDaemon (true);
+                  return t;
+              },
+              this::overflow
+            );
+        }
+    }
+
+    public void execute (Object key, Runnable task) {
+        final long submitted = System.nanoTime();
+        int h = key != null ? key.hashCode() : 0;
+        h ^= h >>> 16;
+        lanes[(h & 0x7FFFFFFF) % lanes.length].execute (() -> {
+            long l = System.nanoTime() - submitted;
+            latency.add (l);
+            maxLatency.accumulateAndGet (l, Math::max);
+            dispatched.increment();
+            task.run();
+        });
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes)
+            lane.shutdown();
+    }
+
+    /**
+     * @return number of tasks started
+     */
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    /**
+     * @return number of tasks discarded because their lane was full (or shut down)
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return average time between submission and start, in nanoseconds
+     */
+    public long getAverageLatency() {
+        long n = dispatched.sum();
+        return n > 0 ? latency.sum() / n : 0L;
+    }
+
+    /**
+     * @return max time between submission and start, in nanoseconds
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /**
+     * @return tasks waiting across all lanes
+     */
+    public int getQueueSize() {
+        int n = 0;
+        for (ThreadPoolExecutor lane : lanes)
+            n += lane.getQueue().size();
+        return n;
+    }
+
+    private void overflow (Runnable r, ThreadPoolExecutor lane) {
+        if (policy == OverflowPolicy.BLOCK && !lane.isShutdown()) {
+            try {
+                lane.getQueue().put (r);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.increment();
+    }
+}
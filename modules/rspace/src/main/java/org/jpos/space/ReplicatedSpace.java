@@ -22,8 +22,21 @@ import java.io.*;
 import java.util.Set;
 import java.util.Map;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.UUID;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import org.jpos.iso.ISOUtil;
+import org.jpos.util.DefaultTimer;
 import org.jpos.util.Log;
 import org.jpos.util.Logger;
 import org.jpos.util.LogEvent;
@@ -32,6 +45,7 @@ import org.jgroups.View;
 import org.jgroups.Message;
 import org.jgroups.Address;
 import org.jgroups.Receiver;
+import org.jgroups.util.Util;
 
 @SuppressWarnings("unchecked")
 public class ReplicatedSpace 
@@ -47,12 +61,35 @@ public class ReplicatedSpace
     View view;
     boolean trace;
     boolean replicate;
+    Consistency consistency = Consistency.STRONG;
+    volatile boolean synced;
+    final Map<Object,Long> versions = new ConcurrentHashMap<>();
+    final Map<Object,Long> tombstones = new ConcurrentHashMap<>();
+    private volatile long lastSweep = System.currentTimeMillis();
+    private final AtomicLong seq = new AtomicLong();
+    final Map<Long,PendingWrite> pending = new ConcurrentHashMap<>();
+    private TimerTask expirer;
+    private final ConcurrentLinkedQueue<Request> outbound = new ConcurrentLinkedQueue<>();
+    final ReentrantLock sendLock = new ReentrantLock();
+    private int maxBatchSize = 64;
+    private RequestCodec codec;
+    private KeyOrderedExecutor dispatcher;
+    private int listenerThreads = 4;
+    private int listenerQueueLimit = 10000;
+    private KeyOrderedExecutor.OverflowPolicy overflowPolicy = KeyOrderedExecutor.OverflowPolicy.DROP;
+    private final Map<Address,Long> applied = new ConcurrentHashMap<>();
+    private final Map<Address,Long> snapshotSeqs = new ConcurrentHashMap<>();
+    private final Object stateLock = new Object();
+    private final List<Object[]> buffered = new ArrayList<>();
+    private boolean transferring;
     public static final long TIMEOUT    = 15000L;
     public static final long MAX_WAIT   = 1000L;
     public static final long MAX_OUT_WAIT  = 5000L;
     public static final long ONE_MINUTE = 60000L;
     public static final long FIVE_MINUTES = 5*60000L;
     private static final long NRD_RESOLUTION = 500L;
+    private static final long TOMBSTONE_RETENTION = FIVE_MINUTES;
+    private static final int STATE_CHUNK = 1000;
 
     public ReplicatedSpace (
             Space sp, 
@@ -62,16 +99,53 @@ public class ReplicatedSpace
             String realm,
             boolean trace, boolean replicate)
         throws Exception
+    {
+        this (sp, groupName, configFile, logger, realm, trace, replicate, new BinaryRequestCodec());
+    }
+    public ReplicatedSpace (
+            Space sp, 
+            String groupName, 
+            String configFile, 
+            Logger logger, 
+            String realm,
+            boolean trace, boolean replicate,
+            RequestCodec codec)
+        throws Exception
+    {
+        this (sp, groupName, configFile, logger, realm, trace, replicate, codec, Consistency.STRONG);
+    }
+    /**
+     * Consistency is set before joining the group, so key versions
+     * received along with the coordinator's state are kept.
+     */
+    public ReplicatedSpace (
+            Space sp, 
+            String groupName, 
+            String configFile, 
+            Logger logger, 
+            String realm,
+            boolean trace, boolean replicate,
+            RequestCodec codec,
+            Consistency consistency)
+        throws Exception
     {
         super ();
         this.sp = sp;
+        this.codec = codec;
+        this.consistency = consistency;
         setLogger (logger, realm);
+        this.trace = trace;
+        this.replicate = replicate;
         initChannel(groupName, configFile);
         this.nodeName = channel.getAddress().toString();
         this.nodePrefix = nodeName + ".";
         this.seqName  = nodeName + ".seq";
-        this.trace = trace;
-        this.replicate = replicate;
+        expirer = new TimerTask() {
+            public void run() {
+                expire (System.currentTimeMillis());
+            }
+        };
+        DefaultTimer.getTimer().schedule (expirer, MAX_WAIT, MAX_WAIT);
     }
     public ReplicatedSpace 
         (Space sp, String groupName, String configFile)
@@ -79,56 +153,93 @@ public class ReplicatedSpace
     {
         this (sp, groupName, configFile, null, null, false, false);
     }
+    /**
+     * Read consistency.
+     * <ul>
+     *  <li>STRONG - rdp/rd are answered by the coordinator (default)</li>
+     *  <li>LOCAL - when replicating, rdp/rd are served from the local replica</li>
+     * </ul>
+     */
+    public enum Consistency {
+        STRONG, LOCAL
+    }
     public void close() throws IOException {
         block();
+        expirer.cancel();
         channel.close();
+        for (Iterator<PendingWrite> iter = pending.values().iterator(); iter.hasNext(); ) {
+            PendingWrite f = iter.next();
+            iter.remove();
+            f.completeExceptionally (new SpaceError ("Space closed"));
+        }
+        synchronized (this) {
+            if (dispatcher != null)
+                dispatcher.shutdown();
+        }
     }
     public void out(Object key, Object value) {
         out(key, value, 0L);
     }
     public void out (Object key, Object value, long timeout) { 
-        getCoordinator();   
-        try {
-            Request r = new Request (Request.OUT, key, value, timeout);
-            channel.send (new Message (null, r));
-            Object o = sp.in (r.getUUID(), MAX_OUT_WAIT);
-            if (o == null)
-                throw new SpaceError ("Could not out " + key);
-        } catch (Exception e) {
-            throw new SpaceError (e);
-        }
+        await (submit (new Request (Request.OUT, key, value, timeout)), "out", key);
     }
     public void push (Object key, Object value) { 
         push(key, value, 0L);
     }
     public void push (Object key, Object value, long timeout) { 
-        getCoordinator();
-        try {
-            Request r = new Request (Request.PUSH, key, value, timeout);
-            channel.send (new Message (null, r));
-            Object o = sp.in (r.getUUID(), MAX_OUT_WAIT);
-            if (o == null)
-                throw new SpaceError ("Could not push " + key);
-        } catch (Exception e) {
-            throw new SpaceError (e);
-        }
+        await (submit (new Request (Request.PUSH, key, value, timeout)), "push", key);
     }
     public void put (Object key, Object value) { 
         put(key, value, 0L);
     }
     public void put (Object key, Object value, long timeout) { 
-        getCoordinator();   
-        try {
-            Request r = new Request (Request.PUT, key, value, timeout);
-            channel.send (new Message (null, r));
-            Object o = sp.in (r.getUUID(), MAX_OUT_WAIT);
-            if (o == null)
-                throw new SpaceError ("Could not put " + key);
-        } catch (Exception e) {
-            throw new SpaceError (e);
-        }
+        await (submit (new Request (Request.PUT, key, value, timeout)), "put", key);
+    }
+
+    /**
+     * Pipelined out, completed once this node has applied its own write.
+     * Writes are coalesced with other pending writes into a single message;
+     * writes issued by this node are applied everywhere in issue order.
+     * The future fails if the write is not applied within MAX_OUT_WAIT
+     * or the space is closed.
+     */
+    public CompletableFuture<Void> outAsync (Object key, Object value, long timeout) {
+        return submit (new Request (Request.OUT, key, value, timeout));
+    }
+    public CompletableFuture<Void> pushAsync (Object key, Object value, long timeout) {
+        return submit (new Request (Request.PUSH, key, value, timeout));
+    }
+    public CompletableFuture<Void> putAsync (Object key, Object value, long timeout) {
+        return submit (new Request (Request.PUT, key, value, timeout));
+    }
+
+    /**
+     * @param maxBatchSize max number of writes coalesced in a single message
+     */
+    public void setMaxBatchSize (int maxBatchSize) {
+        this.maxBatchSize = Math.max (1, maxBatchSize);
+    }
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public RequestCodec getCodec() {
+        return codec;
     }
     public Object rdp (Object key) {
+        return rdp (key, 0L);
+    }
+
+    /**
+     * Reads locally only if the replica has seen at least
+     * <code>minVersion</code> updates on this key, otherwise asks the coordinator.
+     * @param key Entry's key
+     * @param minVersion version previously observed by the caller
+     * @return value or null
+     */
+    public Object rdp (Object key, long minVersion) {
+        if (isLocalRead() && getVersion (key) >= minVersion)
+            return sp.rdp (key);
         Request r = new Request (Request.RDP, key, 0);
         r.value = r.getUUID();
         sendToCoordinator (r);
@@ -148,7 +259,7 @@ public class ReplicatedSpace
     }
     public void receive (Message msg) { 
         LogEvent evt = null;
-        Object obj = msg.getObject();
+        Object obj = decode (msg);
         if (trace && logger != null) {
             evt = createTrace (" receive: " + msg.toString());
             if (obj != null) {
@@ -156,133 +267,218 @@ public class ReplicatedSpace
             }
         }
         if (obj instanceof Request) {
-            Request r = (Request) obj;
-            switch (r.type) {
-                case Request.OUT:
+            if (!buffer ((Request) obj, msg.getSrc()))
+                apply ((Request) obj, msg.getSrc(), evt);
+        } else if (evt != null && obj != null) {
+            evt.addMessage ("  class: " + obj.getClass().getName());
+        }
+        if (evt != null)
+            Logger.log (evt);
+    }
+    private void apply (Request r, Address src, LogEvent evt) {
+        switch (r.type) {
+            case Request.OUT:
+                if (isApplied (r, src))
+                    break;
+                synchronized (sp) {
                     if (r.timeout != 0)
                         sp.out (r.key, r.value, r.timeout + TIMEOUT);
                     else
                         sp.out (r.key, r.value);
+                    applied.merge (src, r.seq, Math::max);
+                }
 
-                    if (msg.getSrc().equals (channel.getAddress())) {
-                        sp.out (r.getUUID(), Boolean.TRUE, MAX_OUT_WAIT);
-                    }
-                    if (sl != null)
-                        notifyListeners(r.key, r.value);
+                bumpVersion (r.key);
+                if (src.equals (channel.getAddress()))
+                    ack (r);
+                if (sl != null)
+                    notifyListeners(r.key, r.value);
+                break;
+            case Request.PUSH:
+                if (isApplied (r, src))
                     break;
-                case Request.PUSH:
-                    if (r.timeout != 0) 
+                synchronized (sp) {
+                    if (r.timeout != 0)
                         sp.push (r.key, r.value, r.timeout + TIMEOUT);
                     else
                         sp.push (r.key, r.value);
+                    applied.merge (src, r.seq, Math::max);
+                }
 
-                    if (msg.getSrc().equals (channel.getAddress())) {
-                        sp.out (r.getUUID(), Boolean.TRUE, MAX_OUT_WAIT);
-                    }
-                    if (sl != null)
-                        notifyListeners(r.key, r.value);
+                bumpVersion (r.key);
+                if (src.equals (channel.getAddress()))
+                    ack (r);
+                if (sl != null)
+                    notifyListeners(r.key, r.value);
+                break;
+            case Request.PUT:
+                if (isApplied (r, src))
                     break;
-                case Request.PUT:
-                    if (r.timeout != 0) 
+                synchronized (sp) {
+                    if (r.timeout != 0)
                         sp.put (r.key, r.value, r.timeout + TIMEOUT);
                     else
                         sp.put (r.key, r.value);
+                    applied.merge (src, r.seq, Math::max);
+                }
 
-                    if (msg.getSrc().equals (channel.getAddress())) {
-                        sp.out (r.getUUID(), Boolean.TRUE, MAX_OUT_WAIT);
-                    }
-                    if (sl != null)
-                        notifyListeners(r.key, r.value);
-                    break;
-                case Request.RDP:
-                    send (msg.getSrc(), 
-                        new Request (
-                            Request.RDP_RESPONSE, 
-                            r.value, // value is ref key for response
-                            sp.rdp (r.key)
-                        )
-                    );
-                    break;
-                case Request.RDP_RESPONSE:
-                    if (r.value == null) {
-                        r.value = new NullPointerException();
-                        if (evt != null)
-                            evt.addMessage (" negative response");
-                    }
-                    sp.out (r.key, r.value, MAX_WAIT);
-                    break;
-                case Request.INP:
-                    Object v = sp.inp (r.key);
-                    if (v != null) {
-                        MD5Template tmpl = new MD5Template(r.key, v);
-                        send (null,
-                            new Request (
-                                Request.INP_NOTIFICATION, 
-                                r.key, 
-                                tmpl
-                            )
-                        );
-                    }
-                    send (msg.getSrc(), 
+                bumpVersion (r.key);
+                if (src.equals (channel.getAddress()))
+                    ack (r);
+                if (sl != null)
+                    notifyListeners(r.key, r.value);
+                break;
+            case Request.RDP:
+                send (src, 
+                    new Request (
+                        Request.RDP_RESPONSE, 
+                        r.value, // value is ref key for response
+                        sp.rdp (r.key)
+                    )
+                );
+                break;
+            case Request.RDP_RESPONSE:
+                if (r.value == null) {
+                    r.value = new NullPointerException();
+                    if (evt != null)
+                        evt.addMessage (" negative response");
+                }
+                sp.out (r.key, r.value, MAX_WAIT);
+                break;
+            case Request.INP:
+                Object v = sp.inp (r.key);
+                if (v != null) {
+                    MD5Template tmpl = new MD5Template(r.key, v);
+                    send (null,
                         new Request (
-                            Request.INP_RESPONSE, 
-                            r.value, // value is ref key for response
-                            v
+                            Request.INP_NOTIFICATION, 
+                            r.key, 
+                            tmpl
                         )
                     );
-                    break;
-                case Request.INP_RESPONSE:
-                    if (r.value == null)
-                        r.value = new NullPointerException();
-                    sp.out (r.key, r.value, MAX_WAIT);
-                    break;
-                case Request.INP_NOTIFICATION:
-                    sp.inp (r.value);
-                    break;
-                case Request.SPACE_COPY:
-                    if (replicate && !isCoordinator() && sp instanceof TSpace) {
-                        ((TSpace)sp).setEntries ((Map) r.value);
-                        synchronized (sp) {
-                            sp.notifyAll();
-                        }
+                }
+                send (src, 
+                    new Request (
+                        Request.INP_RESPONSE, 
+                        r.value, // value is ref key for response
+                        v
+                    )
+                );
+                break;
+            case Request.INP_RESPONSE:
+                if (r.value == null)
+                    r.value = new NullPointerException();
+                sp.out (r.key, r.value, MAX_WAIT);
+                break;
+            case Request.INP_NOTIFICATION:
+                sp.inp (r.value);
+                bumpVersion (r.key);
+                if (r.key != null && isTrackVersions() && sp.rdp (r.key) == null)
+                    tombstones.put (r.key, System.currentTimeMillis());
+                break;
+            case Request.SPACE_COPY:
+                if (replicate && !isCoordinator() && sp instanceof TSpace) {
+                    ((TSpace)sp).setEntries ((Map) r.value);
+                    versions.clear();
+                    tombstones.clear();
+                    if (r.key instanceof Map && isTrackVersions())
+                        versions.putAll ((Map) r.key);
+                    synced = true;
+                    synchronized (sp) {
+                        sp.notifyAll();
                     }
-                    break;
-            }
-        } else if (evt != null) {
-            evt.addMessage ("  class: " + obj.getClass().getName());
+                }
+                break;
+            case Request.BATCH:
+                for (Request b : (Request[]) r.value)
+                    apply (b, src, evt);
+                break;
         }
-        if (evt != null)
-            Logger.log (evt);
     }
 
     /**
-     * Allows an application to write a state through a provided OutputStream. After the state has
-     * been written the OutputStream doesn't need to be closed as stream closing is automatically
-     * done when a calling thread returns from this callback.
+     * Streams a snapshot of the local space to a joining node, along with
+     * the seq of the last write applied from every sender. A space other
+     * than a TSpace sends an empty snapshot.
+     *
+     * Keys are written in chunks of STATE_CHUNK, resetting the object
+     * stream between chunks so neither side accumulates back references
+     * for the whole space.
      *
      * @param output the OutputStream
-     * @throws Exception if the streaming fails, any exceptions should be thrown so that the state requester
-     *                   can re-throw them and let the caller know what happened
-     * @see OutputStream#close()
+     * @throws Exception if the streaming fails
      */
     @Override
     public void getState(OutputStream output) throws Exception {
-
+        Map<Object,List> snapshot = new HashMap<>();
+        Map<Object,Long> v = new HashMap<>();
+        Map<Address,Long> seqs = new HashMap<>();
+        if (sp instanceof TSpace) {
+            v.putAll (versions);
+            synchronized (sp) {
+                for (Map.Entry<Object,Object> e : ((Map<Object,Object>) ((TSpace)sp).getEntries()).entrySet()) {
+                    if (e.getValue() instanceof List)
+                        snapshot.put (e.getKey(), new ArrayList ((List) e.getValue()));
+                }
+                seqs.putAll (applied);
+            }
+        }
+        ObjectOutputStream out = new ObjectOutputStream (output);
+        int n = 0;
+        for (Map.Entry<Object,List> e : snapshot.entrySet()) {
+            out.writeBoolean (true);
+            out.writeObject (e.getKey());
+            out.writeObject (e.getValue());
+            if (++n % STATE_CHUNK == 0)
+                out.reset();
+        }
+        out.writeBoolean (false);
+        out.reset();
+        out.writeObject (v);
+        out.writeInt (seqs.size());
+        for (Map.Entry<Address,Long> e : seqs.entrySet()) {
+            Util.writeAddress (e.getKey(), out);
+            out.writeLong (e.getValue());
+        }
+        out.flush();
+        info ("State sent, " + n + " keys");
     }
 
     /**
-     * Allows an application to read a state through a provided InputStream. After the state has been
-     * read the InputStream doesn't need to be closed as stream closing is automatically done when a
-     * calling thread returns from this callback.
+     * Reads the coordinator's snapshot. Replicated updates received while
+     * the transfer is in progress are buffered and applied afterwards,
+     * skipping writes the snapshot already reflects (see {@link #isApplied}).
      *
      * @param input the InputStream
-     * @throws Exception if the streaming fails, any exceptions should be thrown so that the state requester
-     *                   can catch them and thus know what happened
-     * @see InputStream#close()
+     * @throws Exception if the streaming fails
      */
     @Override
     public void setState(InputStream input) throws Exception {
-
+        Map entries = new HashMap();
+        ObjectInputStream in = new ObjectInputStream (input);
+        while (in.readBoolean())
+            entries.put (in.readObject(), in.readObject());
+        Map<Object,Long> v = (Map<Object,Long>) in.readObject();
+        Map<Address,Long> seqs = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--)
+            seqs.put (Util.readAddress (in), in.readLong());
+        if (sp instanceof TSpace) {
+            synchronized (sp) {
+                ((TSpace)sp).setEntries (entries);
+                sp.notifyAll();
+            }
+            versions.clear();
+            tombstones.clear();
+            if (isTrackVersions())
+                versions.putAll (v);
+            applied.clear();
+            applied.putAll (seqs);
+            snapshotSeqs.clear();
+            snapshotSeqs.putAll (seqs);
+            synced = true;
+        }
+        info ("State received, " + entries.size() + " keys");
+        drain();
     }
 
     public boolean existAny (Object[] keys) {
@@ -309,6 +505,8 @@ public class ReplicatedSpace
     }
     // ----------------------------------------------------------------
     public Object rd  (Object key) {
+        if (isLocalRead())
+            return sp.rd (key);
         Object obj;
         while ((obj = rdp (key)) == null) {
             synchronized (sp) {
@@ -321,6 +519,8 @@ public class ReplicatedSpace
         return obj;
     }
     public Object rd  (Object key, long timeout) {
+        if (isLocalRead())
+            return sp.rd (key, timeout);
         Object obj;
         long end = System.currentTimeMillis() + timeout;
         while ((obj = rdp (key)) == null) {
@@ -374,6 +574,76 @@ public class ReplicatedSpace
     public boolean isTrace() {
         return trace;
     }
+    /**
+     * Switching away from LOCAL discards all key versions.
+     * @param consistency read consistency
+     */
+    public void setConsistency (Consistency consistency) {
+        this.consistency = consistency;
+        if (!isTrackVersions()) {
+            versions.clear();
+            tombstones.clear();
+        }
+    }
+    public Consistency getConsistency() {
+        return consistency;
+    }
+
+    /**
+     * Versions are only tracked with LOCAL consistency. Once a key's last
+     * entry is taken or expires, its version is kept as a tombstone for
+     * TOMBSTONE_RETENTION, so a key emptied and refilled within that time
+     * keeps counting up (and a replica that missed the removal reads as stale);
+     * after that the version is dropped and counting starts over.
+     *
+     * @param key Entry's key
+     * @return number of replicated updates (out/push/put/in) applied locally on key
+     */
+    public long getVersion (Object key) {
+        Long v = versions.get (key);
+        return v != null ? v : 0L;
+    }
+
+    /**
+     * @return true if rdp/rd can be answered by the local replica
+     */
+    public boolean isLocalRead() {
+        View v = view;
+        return consistency == Consistency.LOCAL && replicate && v != null
+          && (synced || channel.getAddress().equals (v.getMembers().get(0)));
+    }
+    private boolean isTrackVersions() {
+        return consistency == Consistency.LOCAL;
+    }
+    private void bumpVersion (Object key) {
+        if (key != null && isTrackVersions()) {
+            versions.merge (key, 1L, Long::sum);
+            tombstones.remove (key);
+            sweepVersions();
+        }
+    }
+
+    /**
+     * Tombstones the versions of keys whose entries have expired, and drops
+     * tombstones older than TOMBSTONE_RETENTION, at most once a minute.
+     */
+    private void sweepVersions() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < ONE_MINUTE)
+            return;
+        lastSweep = now;
+        for (Object k : versions.keySet()) {
+            if (sp.rdp (k) != null) {
+                tombstones.remove (k);
+                continue;
+            }
+            Long since = tombstones.putIfAbsent (k, now);
+            if (since != null && now - since >= TOMBSTONE_RETENTION) {
+                versions.remove (k);
+                tombstones.remove (k);
+            }
+        }
+    }
     private Address getCoordinator () {
         assertChannel();
         if (view != null)
@@ -412,25 +682,13 @@ public class ReplicatedSpace
 
     public void viewAccepted (View view) {
         this.view = view;
+        if (isCoordinator())
+            synced = true;
         if (logger != null) {
             LogEvent evt = createInfo ("view-accepted");
             evt.addMessage (view.toString());
             Logger.log (evt);
         }
-        if (replicate && isCoordinator() && view.getMembers().size() > 1 && sp instanceof TSpace) {
-            new Thread () {
-                public void run() {
-                    info ("New node joined, sending full Space");
-                    send (null,
-                        new Request (
-                            Request.SPACE_COPY, 
-                            null,
-                            ((TSpace)sp).getEntries()
-                        )
-                    );
-                }
-            }.start();
-        }
     }
     public boolean isCoordinator () {
         return channel.getAddress().equals (view.getMembers().get(0));
@@ -458,17 +716,116 @@ public class ReplicatedSpace
     private void send (Address destination, Request r) 
     {
         try {
-            channel.send (new Message (destination, r));
+            channel.send (message (destination, r));
         } catch (Exception e) {
             error (e);
         }
     }
+    /**
+     * Seqs are assigned as writes are queued, under the same lock, so
+     * this node's writes leave (and are applied everywhere) in seq order.
+     */
+    private PendingWrite submit (Request r) {
+        getCoordinator();
+        PendingWrite f;
+        synchronized (outbound) {
+            r.seq = seq.incrementAndGet();
+            f = new PendingWrite (r, System.currentTimeMillis() + MAX_OUT_WAIT);
+            pending.put (r.seq, f);
+            outbound.add (r);
+        }
+        flush();
+        return f;
+    }
+    /**
+     * Whoever gets the lock sends everything queued so far, so concurrent
+     * writers piggyback on the current leader's message.
+     */
+    private void flush() {
+        while (!outbound.isEmpty() && sendLock.tryLock()) {
+            try {
+                List<Request> batch = new ArrayList<>();
+                Request r;
+                while (batch.size() < maxBatchSize && (r = outbound.poll()) != null)
+                    batch.add (r);
+                if (batch.isEmpty())
+                    continue;
+                Request m = batch.size() == 1 ? batch.get(0) :
+                  new Request (Request.BATCH, null, batch.toArray (new Request[batch.size()]));
+                try {
+                    channel.send (message (null, m));
+                } catch (Exception e) {
+                    for (Request b : batch) {
+                        PendingWrite f = pending.remove (b.seq);
+                        if (f != null)
+                            f.completeExceptionally (e);
+                    }
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+    /**
+     * A sender's writes leave it in seq order (see {@link #submit}) and
+     * JGroups delivers them in that order, so the state snapshot reflects
+     * exactly the writes up to the last seq it recorded for each sender.
+     * Those are skipped when they are delivered again (e.g. buffered while
+     * the transfer was in progress); later writes are always applied.
+     */
+    private boolean isApplied (Request r, Address src) {
+        Long last = snapshotSeqs.get (src);
+        return r.seq > 0L && last != null && r.seq <= last;
+    }
+    private void ack (Request r) {
+        PendingWrite f = pending.remove (r.seq);
+        if (f != null)
+            f.complete (null);
+    }
+
+    /**
+     * Fails writes that were not acknowledged before their deadline.
+     */
+    private void expire (long now) {
+        for (Iterator<PendingWrite> iter = pending.values().iterator(); iter.hasNext(); ) {
+            PendingWrite f = iter.next();
+            if (now >= f.deadline) {
+                iter.remove();
+                f.completeExceptionally (new SpaceError ("Could not " + f.request));
+            }
+        }
+    }
+    private void await (PendingWrite f, String op, Object key) {
+        try {
+            f.get (MAX_OUT_WAIT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            pending.remove (f.request.seq);
+            f.completeExceptionally (new SpaceError ("Could not " + op + " " + key));
+            throw new SpaceError ("Could not " + op + " " + key);
+        } catch (ExecutionException e) {
+            throw new SpaceError (e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SpaceError (e);
+        }
+    }
+    private Message message (Address destination, Request r) throws IOException {
+        return new Message (destination, codec.encode (r));
+    }
+    private Object decode (Message msg) {
+        try {
+            return codec.decode (msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        } catch (IOException e) {
+            warn ("Invalid request from " + msg.getSrc(), e);
+            return null;
+        }
+    }
     private void sendToCoordinator (Request r) 
     {
         while (true) {
             Address coordinator = getCoordinator();
             try {
-                channel.send (new Message (coordinator, r));
+                channel.send (message (coordinator, r));
                 break;
             } catch (Exception e) {
                 error ("error " + e.getMessage() + ", retrying");
@@ -478,12 +835,55 @@ public class ReplicatedSpace
             }
         }
     }
+    /**
+     * @return true if the request was buffered because a state transfer is in progress
+     */
+    private boolean buffer (Request r, Address src) {
+        switch (r.type) {
+            case Request.OUT:
+            case Request.PUSH:
+            case Request.PUT:
+            case Request.INP_NOTIFICATION:
+            case Request.BATCH:
+                synchronized (stateLock) {
+                    if (transferring) {
+                        buffered.add (new Object[] { r, src });
+                        return true;
+                    }
+                }
+        }
+        return false;
+    }
+    private void drain() {
+        for (;;) {
+            List<Object[]> l;
+            synchronized (stateLock) {
+                if (buffered.isEmpty()) {
+                    transferring = false;
+                    return;
+                }
+                l = new ArrayList<>(buffered);
+                buffered.clear();
+            }
+            for (Object[] o : l)
+                apply ((Request) o[0], (Address) o[1], null);
+        }
+    }
     private void initChannel (String groupName, String configFile) 
         throws Exception
     {
         channel = new JChannel (configFile);
         channel.setReceiver(this);
-        channel.connect (groupName);
+        if (replicate && sp instanceof TSpace) {
+            transferring = true;
+            try {
+                channel.connect (groupName, null, FIVE_MINUTES);
+            } finally {
+                drain();
+            }
+        } else {
+            channel.connect (groupName);
+        }
         info ("member: " + channel.getAddress().toString());
     }
     public static class Request implements Serializable {
@@ -497,21 +897,22 @@ public class ReplicatedSpace
         static final int INP_NOTIFICATION=7;
         static final int SPACE_COPY=8;
         static final int PUT=9;
+        static final int BATCH=10;
         static final String[] types = { 
             "", "OUT", "PUSH", "RDP", "RDP_RESPONSE", 
             "INP", "INP_RESPONSE", "INP_NOTIFICATION", 
-            "SPACE_COPY", "PUT"
+            "SPACE_COPY", "PUT", "BATCH"
         };
 
         public int type=0;
         public Object key=null;
         public Object value=null;
         public long timeout=0;
-        private UUID uuid;
+        public long seq=0;
+        UUID uuid;
 
         public Request() {
             super();
-            uuid = UUID.randomUUID();
         }
         public Request(int type, Object key, Object value, long timeout) {
             this ();
@@ -542,12 +943,23 @@ public class ReplicatedSpace
             return sb.toString();
         }
         public UUID getUUID () {
+            if (uuid == null)
+                uuid = UUID.randomUUID();
             return uuid;
         }
         String type2String (int type) {
             return type < types.length ? types [type] : "invalid";
         }
     }
+    static class PendingWrite extends CompletableFuture<Void> {
+        final Request request;
+        final long deadline;
+
+        PendingWrite (Request request, long deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
     public Set getKeySet () {
         return ((LocalSpace)sp).getKeySet();
     }
@@ -570,29 +982,66 @@ public class ReplicatedSpace
         }
     }
     public void notifyListeners (final Object key, final Object value) {
-        new Thread() {
-            public void run() {
-                Object[] listeners = null;
-                synchronized (this) {
-                    if (sl == null)
-                        return;
-                    List l = (List) sl.entries.get (key);
-                    if (l != null)
-                        listeners = l.toArray();
-                }
-                if (listeners != null) {
-                    for (int i=0; i<listeners.length; i++) {
-                        Object o = listeners[i];
-                        if (o instanceof TSpace.Expirable) {
-                            o = ((TSpace.Expirable)o).getValue();
-                        }
-                        if (o instanceof SpaceListener) {
+        getDispatcher().execute (key, () -> {
+            Object[] listeners = null;
+            synchronized (ReplicatedSpace.this) {
+                if (sl == null)
+                    return;
+                List l = (List) sl.entries.get (key);
+                if (l != null)
+                    listeners = l.toArray();
+            }
+            if (listeners != null) {
+                for (int i=0; i<listeners.length; i++) {
+                    Object o = listeners[i];
+                    if (o instanceof TSpace.Expirable) {
+                        o = ((TSpace.Expirable)o).getValue();
+                    }
+                    if (o instanceof SpaceListener) {
+                        try {
                             ((SpaceListener) o).notify(key, value);
+                        } catch (Throwable t) {
+                            warn ("listener " + o + " failed on " + key, t);
                         }
                     }
                 }
             }
-        }.start();
+        });
+    }
+
+    /**
+     * Listener notification settings. An executor already started (e.g. by
+     * notifications received while joining) is replaced; the notifications
+     * it has queued still run, and its counters are discarded.
+     *
+     * @param threads number of notification threads, a key is always notified by the same thread
+     * @param queueLimit max pending notifications per thread
+     * @param overflowPolicy DROP (default) or BLOCK when a thread's queue is full;
+     *        BLOCK stalls the JGroups receive thread, and deadlocks if a listener
+     *        writes to this space while its queue is full
+     */
+    public synchronized void setListenerExecutor
+        (int threads, int queueLimit, KeyOrderedExecutor.OverflowPolicy overflowPolicy)
+    {
+        this.listenerThreads = threads;
+        this.listenerQueueLimit = queueLimit;
+        this.overflowPolicy = overflowPolicy;
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+    }
+
+    /**
+     * @return listener notification executor, exposes dispatched/dropped counters and latency
+     */
+    public synchronized KeyOrderedExecutor getDispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new KeyOrderedExecutor (
+              "rspace-listener", listenerThreads, listenerQueueLimit, overflowPolicy
+            );
+        }
+        return dispatcher;
     }
     private TSpace getSL() {
         synchronized (this) {
@@ -27,7 +27,7 @@ import org.jdom2.Element;
  * RemoteSpaceAdaptor
  * @author Alejandro Revilla
  */
-public class ReplicatedSpaceAdaptor extends QBeanSupport {
+public class ReplicatedSpaceAdaptor extends QBeanSupport implements ReplicatedSpaceAdaptorMBean {
     private Space sp = null;
     private ReplicatedSpace rs = null;
     private String rspaceUri = null;
@@ -46,7 +46,21 @@ public class ReplicatedSpaceAdaptor extends QBeanSupport {
                 getLog().getLogger(),
                 getLog().getRealm(),
                 cfg.getBoolean ("trace"),
-                cfg.getBoolean ("replicate", false)
+                cfg.getBoolean ("replicate", false),
+                (RequestCodec) getFactory().newInstance (
+                    cfg.get ("codec", BinaryRequestCodec.class.getName())
+                ),
+                ReplicatedSpace.Consistency.valueOf (
+                    cfg.get ("consistency", "strong").toUpperCase()
+                )
+            );
+            rs.setMaxBatchSize (cfg.getInt ("max-batch-size", 64));
+            rs.setListenerExecutor (
+                cfg.getInt ("listener-threads", 4),
+                cfg.getInt ("listener-queue-limit", 10000),
+                KeyOrderedExecutor.OverflowPolicy.valueOf (
+                    cfg.get ("listener-overflow", "drop").toUpperCase()
+                )
             );
             NameRegistrar.register (rspaceUri, rs);
         } catch (Throwable t) {
@@ -58,4 +72,19 @@ public class ReplicatedSpaceAdaptor extends QBeanSupport {
             rs.close();
         NameRegistrar.unregister (rspaceUri);
     }
+    public long getListenerDispatched() {
+        return rs != null ? rs.getDispatcher().getDispatched() : 0L;
+    }
+    public long getListenerDropped() {
+        return rs != null ? rs.getDispatcher().getDropped() : 0L;
+    }
+    public long getListenerAverageLatency() {
+        return rs != null ? rs.getDispatcher().getAverageLatency() : 0L;
+    }
+    public long getListenerMaxLatency() {
+        return rs != null ? rs.getDispatcher().getMaxLatency() : 0L;
+    }
+    public int getListenerQueueSize() {
+        return rs != null ? rs.getDispatcher().getQueueSize() : 0;
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import java.io.IOException;
+
+/**
+ * Wire format used by {@link ReplicatedSpace} to send {@link ReplicatedSpace.Request}s.
+ *
+ * All members of a group have to use the same codec.
+ *
+ * @see BinaryRequestCodec
+ * @see SerializingRequestCodec
+ */
+public interface RequestCodec {
+    byte[] encode (ReplicatedSpace.Request r) throws IOException;
+    ReplicatedSpace.Request decode (byte[] b, int offset, int length) throws IOException;
+}
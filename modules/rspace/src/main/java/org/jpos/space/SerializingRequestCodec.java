@@ -0,0 +1,44 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import java.io.*;
+
+/**
+ * Plain Java serialization of the whole {@link ReplicatedSpace.Request}.
+ */
+public class SerializingRequestCodec implements RequestCodec {
+    @Override
+    public byte[] encode (ReplicatedSpace.Request r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream (baos)) {
+            out.writeObject (r);
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public ReplicatedSpace.Request decode (byte[] b, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream (new ByteArrayInputStream (b, offset, length))) {
+            return (ReplicatedSpace.Request) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException (e);
+        }
+    }
+}
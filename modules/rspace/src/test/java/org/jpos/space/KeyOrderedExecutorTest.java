@@ -0,0 +1,151 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jpos.space.ReplicatedSpaceTest.waitFor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyOrderedExecutorTest {
+    private KeyOrderedExecutor executor;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    @Test
+    public void testSameKeyRunsInOrder() throws Exception {
+        executor = new KeyOrderedExecutor("test", 4, 100000, KeyOrderedExecutor.OverflowPolicy.BLOCK);
+        int keys = 16, tasks = 1000;
+        List<List<Integer>> runs = new ArrayList<>();
+        for (int k=0; k<keys; k++)
+            runs.add(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(keys * tasks);
+        for (int i=0; i<tasks; i++) {
+            for (int k=0; k<keys; k++) {
+                final List<Integer> l = runs.get(k);
+                final int n = i;
+                executor.execute("K" + k, () -> {
+                    synchronized (l) {
+                        l.add(n);
+                    }
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> l : runs) {
+            assertEquals(tasks, l.size());
+            for (int i=0; i<tasks; i++)
+                assertEquals(i, (int) l.get(i));
+        }
+        assertEquals(0L, executor.getDropped());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        executor = new KeyOrderedExecutor("test", 1, 2, KeyOrderedExecutor.OverflowPolicy.DROP);
+        AtomicInteger ran = new AtomicInteger();
+        CountDownLatch started = stall();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i=0; i<5; i++)
+            executor.execute("K", ran::incrementAndGet);
+        assertEquals(3L, executor.getDropped());
+        assertEquals(2, executor.getQueueSize());
+
+        release.countDown();
+        waitFor(() -> executor.getDispatched() == 3L);
+        Thread.sleep(100L); // a dropped task would have run by now
+        assertEquals(2, ran.get());
+        assertEquals(3L, executor.getDropped());
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        executor = new KeyOrderedExecutor("test", 1, 1, KeyOrderedExecutor.OverflowPolicy.BLOCK);
+        AtomicInteger ran = new AtomicInteger();
+        CountDownLatch started = stall();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute("K", ran::incrementAndGet);
+        Thread submitter = new Thread(() -> executor.execute("K", ran::incrementAndGet));
+        submitter.start();
+        submitter.join(200L);
+        assertTrue("submitter should wait for room", submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000L);
+        assertFalse(submitter.isAlive());
+        waitFor(() -> ran.get() == 2);
+        assertEquals(0L, executor.getDropped());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        executor = new KeyOrderedExecutor("test", 2, 100, KeyOrderedExecutor.OverflowPolicy.DROP);
+        assertEquals(0L, executor.getDispatched());
+        assertEquals(0L, executor.getAverageLatency());
+        assertEquals(0L, executor.getMaxLatency());
+        assertEquals(0, executor.getQueueSize());
+
+        CountDownLatch started = stall();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i=0; i<10; i++)
+            executor.execute("K", () -> { });
+        assertEquals(10, executor.getQueueSize());
+        Thread.sleep(50L);
+
+        release.countDown();
+        waitFor(() -> executor.getDispatched() == 11L);
+        assertEquals(0, executor.getQueueSize());
+        long max = executor.getMaxLatency();
+        long avg = executor.getAverageLatency();
+        assertTrue("max latency " + max, max >= TimeUnit.MILLISECONDS.toNanos(50L));
+        assertTrue("average latency " + avg, avg > 0L && avg <= max);
+        assertEquals(0L, executor.getDropped());
+    }
+
+    /**
+     * Keeps key K's lane busy until release.
+     * @return latch counted down once the lane is busy
+     */
+    private CountDownLatch stall() {
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute("K", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) { }
+        });
+        return started;
+    }
+}
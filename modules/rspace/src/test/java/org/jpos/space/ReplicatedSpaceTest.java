@@ -0,0 +1,378 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import org.jgroups.Message;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplicatedSpaceTest {
+    private static final String CONFIG = "rspace-test.xml";
+    private final List<ReplicatedSpace> spaces = new ArrayList<>();
+    private final String group = "rspace-test-" + UUID.randomUUID();
+
+    @After
+    public void tearDown() throws IOException {
+        for (ReplicatedSpace rs : spaces)
+            rs.close();
+    }
+
+    @Test
+    public void testVersionSurvivesRemoval() throws Exception {
+        ReplicatedSpace a = join(local());
+        LaggingSpace b = join(new LaggingSpace(group, ReplicatedSpace.Consistency.LOCAL));
+
+        a.out("K", "v1");
+        waitFor(() -> b.getVersion("K") == 1L && b.isLocalRead());
+
+        b.hold = true; // b misses the removal and the refill
+        assertEquals("v1", a.inp("K"));
+        a.out("K", "v2");
+        long v = a.getVersion("K");
+        assertTrue("version went back to " + v, v > b.getVersion("K"));
+        assertEquals("stale local value served", "v2", b.rdp("K", v));
+
+        b.release();
+        waitFor(() -> b.getVersion("K") == v);
+        assertEquals("v2", b.rdp("K", v));
+    }
+
+    @Test
+    public void testJoinerKeepsVersions() throws Exception {
+        ReplicatedSpace a = join(local());
+        a.out("K", "v1");
+        a.out("K", "v2");
+        assertEquals("v1", a.inp("K"));
+        waitFor(() -> a.getVersion("K") == 3L);
+        long v = a.getVersion("K");
+
+        ReplicatedSpace b = join(local());
+        assertEquals(v, b.getVersion("K"));
+        assertTrue(b.isLocalRead());
+        assertEquals("v2", b.rdp("K", v));
+    }
+
+    @Test
+    public void testCoalescedWritesKeepOrder() throws Exception {
+        LaggingSpace rs = join(new LaggingSpace(group));
+        rs.setMaxBatchSize(16);
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        rs.sendLock.lock(); // writes queue up behind a slow sender
+        try {
+            Thread[] producers = new Thread[4];
+            for (int p=0; p<producers.length; p++) {
+                final int base = p * 1000;
+                producers[p] = new Thread(() -> {
+                    for (int i=0; i<50; i++)
+                        futures.add(rs.outAsync("Q", base + i, 0L));
+                });
+                producers[p].start();
+            }
+            for (Thread t : producers)
+                t.join();
+            assertEquals(200, rs.pending.size());
+        } finally {
+            rs.sendLock.unlock();
+        }
+        futures.add(rs.outAsync("Q", -1, 0L)); // flushes everything queued so far
+        for (CompletableFuture<Void> f : futures)
+            f.get(10, TimeUnit.SECONDS);
+        assertTrue(rs.pending.isEmpty());
+        List<Integer> batches = new ArrayList<>(Collections.nCopies(12, 16));
+        batches.add(9);
+        assertEquals(batches, rs.received);
+        assertInOrder(rs.seqs);
+
+        int[] last = { -1, 999, 1999, 2999 };
+        for (int i=0; i<200; i++) {
+            int v = (Integer) rs.inp("Q");
+            assertEquals("out of order " + v, last[v / 1000] + 1, v);
+            last[v / 1000] = v;
+        }
+        assertEquals(-1, rs.inp("Q"));
+    }
+
+    @Test
+    public void testUnacknowledgedWritesExpire() throws Exception {
+        LaggingSpace rs = join(new LaggingSpace(group));
+        rs.hold = true; // own writes are never applied, hence never acknowledged
+        CompletableFuture<Void> f = rs.outAsync("K", "async", 0L);
+        long start = System.currentTimeMillis();
+        try {
+            rs.out("K", "sync");
+            fail("SpaceError expected");
+        } catch (SpaceError e) {
+            assertTrue(System.currentTimeMillis() - start >= ReplicatedSpace.MAX_OUT_WAIT);
+        }
+        try {
+            f.get(ReplicatedSpace.MAX_OUT_WAIT, TimeUnit.MILLISECONDS);
+            fail("SpaceError expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SpaceError);
+        }
+        assertTrue(rs.pending.isEmpty());
+    }
+
+    @Test
+    public void testCloseFailsPendingWrites() throws Exception {
+        LaggingSpace rs = new LaggingSpace(group);
+        rs.hold = true;
+        CompletableFuture<Void> f = rs.putAsync("K", "V", 0L);
+        assertFalse(f.isDone());
+        rs.close();
+        assertTrue(f.isCompletedExceptionally());
+        assertTrue(rs.pending.isEmpty());
+    }
+
+    @Test
+    public void testWriteDuringStateTransferAppliedOnce() throws Exception {
+        StateProvider a = join(new StateProvider(group));
+        a.out("K", "before");
+        a.writeDuringTransfer = true;
+        ReplicatedSpace b = join(new ReplicatedSpace(new TSpace(), group, CONFIG, null, null, false, true));
+        waitFor(() -> a.after != null);
+        a.after.get(10, TimeUnit.SECONDS);
+        waitFor(() -> b.size("K") >= 3);
+        Thread.sleep(200L); // a duplicate would show up by now
+        assertEquals("before", b.sp.inp("K"));
+        assertEquals("during", b.sp.inp("K"));
+        assertEquals("after", b.sp.inp("K"));
+        assertNull(b.sp.inp("K"));
+    }
+
+    @Test
+    public void testConcurrentWritersLoseNothing() throws Exception {
+        ReplicatedSpace a = join(new ReplicatedSpace(new TSpace(), group, CONFIG, null, null, false, true));
+        ReplicatedSpace b = join(new ReplicatedSpace(new TSpace(), group, CONFIG, null, null, false, true));
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] writers = new Thread[8];
+        for (int w=0; w<writers.length; w++) {
+            final int base = w * 1000;
+            writers[w] = new Thread(() -> {
+                try {
+                    for (int i=0; i<50; i++) {
+                        if (i % 2 == 0)
+                            a.out("C", base + i);
+                        else
+                            futures.add(a.outAsync("C", base + i, 0L));
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread t : writers)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (CompletableFuture<Void> f : futures)
+            f.get(10, TimeUnit.SECONDS);
+
+        for (ReplicatedSpace rs : new ReplicatedSpace[] { a, b }) {
+            waitFor(() -> rs.size("C") >= 400);
+            int[] last = new int[writers.length];
+            Arrays.fill(last, -1);
+            for (int i=0; i<400; i++) {
+                int v = (Integer) rs.sp.inp("C");
+                assertEquals("out of order " + v, last[v / 1000] + 1, v % 1000);
+                last[v / 1000] = v % 1000;
+            }
+            assertNull(rs.sp.inp("C"));
+        }
+    }
+
+    @Test
+    public void testListenerExecutorReplaced() throws Exception {
+        ReplicatedSpace rs = join(new ReplicatedSpace(new TSpace(), group, CONFIG));
+        KeyOrderedExecutor started = rs.getDispatcher(); // e.g. a notification during the join
+        rs.setListenerExecutor(1, 1, KeyOrderedExecutor.OverflowPolicy.DROP);
+        KeyOrderedExecutor e = rs.getDispatcher();
+        assertNotSame(started, e);
+
+        CountDownLatch release = new CountDownLatch(1);
+        e.execute("K", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) { }
+        });
+        for (int i=0; i<3; i++)
+            e.execute("K", () -> { });
+        assertTrue("configured queue limit ignored", e.getDropped() > 0L);
+        release.countDown();
+    }
+
+    @Test
+    public void testStateFromNonTSpace() throws Exception {
+        Space none = (Space) Proxy.newProxyInstance(
+          Space.class.getClassLoader(), new Class[] { Space.class }, (proxy, method, args) -> null
+        );
+        ReplicatedSpace a = join(new ReplicatedSpace(none, group, CONFIG));
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        a.getState(state);
+
+        ReplicatedSpace b = join(new ReplicatedSpace(new TSpace(), group, CONFIG));
+        b.setState(new ByteArrayInputStream(state.toByteArray()));
+        assertTrue(b.getKeySet().isEmpty());
+    }
+
+    private ReplicatedSpace local() throws Exception {
+        return new ReplicatedSpace(
+          new TSpace(), group, CONFIG, null, null, false, true,
+          new BinaryRequestCodec(), ReplicatedSpace.Consistency.LOCAL
+        );
+    }
+
+    private <T extends ReplicatedSpace> T join(T rs) {
+        spaces.add(rs);
+        return rs;
+    }
+
+    static void assertInOrder(List<Long> seqs) {
+        for (int i=1; i<seqs.size(); i++)
+            assertTrue("seq " + seqs.get(i) + " after " + seqs.get(i-1), seqs.get(i) > seqs.get(i-1));
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10L);
+        }
+    }
+
+    /**
+     * Coordinator that, while sending its state, applies a write before
+     * taking the snapshot and issues another one right after it.
+     */
+    static class StateProvider extends ReplicatedSpace {
+        volatile boolean writeDuringTransfer;
+        volatile CompletableFuture<Void> after;
+
+        StateProvider(String group) throws Exception {
+            super(new TSpace(), group, CONFIG, null, null, false, true);
+        }
+
+        @Override
+        public void getState(OutputStream output) throws Exception {
+            if (writeDuringTransfer)
+                outAsync("K", "during", 0L).get(10, TimeUnit.SECONDS);
+            super.getState(output);
+            if (writeDuringTransfer)
+                after = outAsync("K", "after", 0L);
+        }
+    }
+
+    /**
+     * Replica that, while on hold, queues replicated writes instead of applying them.
+     * Records the number of writes carried by every write message it receives.
+     */
+    static class LaggingSpace extends ReplicatedSpace {
+        volatile boolean hold;
+        private final List<Message> held = new ArrayList<>();
+        final List<Integer> received = new ArrayList<>();
+        final List<Long> seqs = new ArrayList<>();
+
+        LaggingSpace(String group) throws Exception {
+            this(group, Consistency.STRONG);
+        }
+
+        LaggingSpace(String group, Consistency consistency) throws Exception {
+            super(new TSpace(), group, CONFIG, null, null, false, true, new BinaryRequestCodec(), consistency);
+        }
+
+        @Override
+        public void receive(Message msg) {
+            List<Long> writes = writes(msg);
+            if (!writes.isEmpty()) {
+                synchronized (received) {
+                    received.add(writes.size());
+                    seqs.addAll(writes);
+                }
+            }
+            if (hold && !writes.isEmpty()) {
+                synchronized (held) {
+                    held.add(msg);
+                }
+                return;
+            }
+            super.receive(msg);
+        }
+
+        void release() {
+            hold = false;
+            List<Message> l;
+            synchronized (held) {
+                l = new ArrayList<>(held);
+                held.clear();
+            }
+            for (Message m : l)
+                super.receive(m);
+        }
+
+        /**
+         * @return seqs of the writes carried by msg
+         */
+        private List<Long> writes(Message msg) {
+            List<Long> l = new ArrayList<>();
+            try {
+                writes(getCodec().decode(msg.getRawBuffer(), msg.getOffset(), msg.getLength()), l);
+            } catch (IOException ignored) { }
+            return l;
+        }
+
+        private void writes(Request r, List<Long> l) {
+            switch (r.type) {
+                case Request.OUT:
+                case Request.PUSH:
+                case Request.PUT:
+                case Request.INP_NOTIFICATION:
+                    l.add(r.seq);
+                    break;
+                case Request.BATCH:
+                    for (Request b : (Request[]) r.value)
+                        writes(b, l);
+                    break;
+            }
+        }
+    }
+}
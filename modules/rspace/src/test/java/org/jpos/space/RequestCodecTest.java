@@ -0,0 +1,186 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2017 jPOS Software SRL
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.space;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCodecTest {
+    private static final RequestCodec[] CODECS = {
+        new BinaryRequestCodec(), new SerializingRequestCodec()
+    };
+    private static final long[] VARLONGS = {
+        0L, 1L, 127L, 128L, 16383L, 16384L, -1L, Long.MIN_VALUE, Long.MAX_VALUE
+    };
+
+    @Test
+    public void testValues() throws Exception {
+        Object[] values = {
+            null,
+            "",
+            "key áé€",
+            new byte[0],
+            new byte[] { 0, 1, (byte) 0x7F, (byte) 0x80, (byte) 0xFF },
+            0, Integer.MIN_VALUE, Integer.MAX_VALUE,
+            0L, Long.MIN_VALUE, Long.MAX_VALUE,
+            0.0d, -1.5d, Double.NaN, Double.MAX_VALUE,
+            Boolean.TRUE, Boolean.FALSE,
+            UUID.randomUUID(),
+            isoMsg(),
+            new Date(), // SERIALIZED
+            new ArrayList<>(Arrays.asList("a", 1L)) // SERIALIZED
+        };
+        for (RequestCodec codec : CODECS) {
+            for (Object v : values) {
+                ReplicatedSpace.Request r = new ReplicatedSpace.Request(ReplicatedSpace.Request.OUT, v, v, 1000L);
+                assertRequestEquals(r, roundTrip(codec, r));
+            }
+        }
+    }
+
+    @Test
+    public void testVarLongs() throws Exception {
+        for (RequestCodec codec : CODECS) {
+            for (long seq : VARLONGS) {
+                for (long timeout : VARLONGS) {
+                    ReplicatedSpace.Request r = new ReplicatedSpace.Request(ReplicatedSpace.Request.PUT, "K", "V", timeout);
+                    r.seq = seq;
+                    assertRequestEquals(r, roundTrip(codec, r));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUUID() throws Exception {
+        for (RequestCodec codec : CODECS) {
+            ReplicatedSpace.Request r = new ReplicatedSpace.Request(ReplicatedSpace.Request.RDP, "K", 0L);
+            r.value = r.getUUID();
+            assertRequestEquals(r, roundTrip(codec, r));
+        }
+    }
+
+    @Test
+    public void testNestedBatch() throws Exception {
+        ReplicatedSpace.Request inner = new ReplicatedSpace.Request(
+          ReplicatedSpace.Request.BATCH, null, new ReplicatedSpace.Request[] {
+            write(ReplicatedSpace.Request.PUSH, "A", isoMsg(), 3L),
+            write(ReplicatedSpace.Request.PUT, 7, new byte[] { 1, 2, 3 }, 4L)
+          }
+        );
+        ReplicatedSpace.Request r = new ReplicatedSpace.Request(
+          ReplicatedSpace.Request.BATCH, null, new ReplicatedSpace.Request[] {
+            write(ReplicatedSpace.Request.OUT, "A", "1", 1L),
+            inner,
+            write(ReplicatedSpace.Request.OUT, "B", null, Long.MAX_VALUE)
+          }
+        );
+        for (RequestCodec codec : CODECS)
+            assertRequestEquals(r, roundTrip(codec, r));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws Exception {
+        byte[] b = new BinaryRequestCodec().encode(new ReplicatedSpace.Request(ReplicatedSpace.Request.OUT, "K", "V"));
+        b[0] = 99;
+        new BinaryRequestCodec().decode(b, 0, b.length);
+    }
+
+    /**
+     * Decodes from the middle of a larger buffer, as JGroups hands it over.
+     */
+    private static ReplicatedSpace.Request roundTrip(RequestCodec codec, ReplicatedSpace.Request r) throws IOException {
+        byte[] b = codec.encode(r);
+        byte[] buf = new byte[b.length + 16];
+        Arrays.fill(buf, (byte) 0xAA);
+        System.arraycopy(b, 0, buf, 7, b.length);
+        return codec.decode(buf, 7, b.length);
+    }
+
+    private static ReplicatedSpace.Request write(int type, Object key, Object value, long seq) {
+        ReplicatedSpace.Request r = new ReplicatedSpace.Request(type, key, value, seq * 10L);
+        r.seq = seq;
+        return r;
+    }
+
+    private static ISOMsg isoMsg() throws ISOException {
+        ISOMsg m = new ISOMsg("0800");
+        m.set(11, "000001");
+        m.set(41, "TERM0001");
+        m.set("48.1", "nested");
+        m.set(52, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        return m;
+    }
+
+    private static void assertRequestEquals(ReplicatedSpace.Request expected, ReplicatedSpace.Request actual) throws ISOException {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.seq, actual.seq);
+        assertEquals(expected.timeout, actual.timeout);
+        assertEquals(expected.uuid, actual.uuid);
+        assertValueEquals(expected.key, actual.key);
+        assertValueEquals(expected.value, actual.value);
+    }
+
+    private static void assertValueEquals(Object expected, Object actual) throws ISOException {
+        if (expected instanceof byte[]) {
+            assertTrue(actual instanceof byte[]);
+            assertArrayEquals((byte[]) expected, (byte[]) actual);
+        } else if (expected instanceof ISOMsg) {
+            assertTrue(actual instanceof ISOMsg);
+            assertEquals(dump((ISOMsg) expected), dump((ISOMsg) actual));
+        } else if (expected instanceof ReplicatedSpace.Request[]) {
+            ReplicatedSpace.Request[] e = (ReplicatedSpace.Request[]) expected;
+            ReplicatedSpace.Request[] a = (ReplicatedSpace.Request[]) actual;
+            assertEquals(e.length, a.length);
+            for (int i=0; i<e.length; i++)
+                assertRequestEquals(e[i], a[i]);
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static List<String> dump(ISOMsg m) throws ISOException {
+        List<String> l = new ArrayList<>();
+        l.add(m.getMTI());
+        for (int i=1; i<=m.getMaxField(); i++) {
+            if (m.hasField(i)) {
+                Object v = m.getValue(i);
+                if (v instanceof ISOMsg)
+                    l.add(i + "=" + dump((ISOMsg) v));
+                else if (v instanceof byte[])
+                    l.add(i + "=" + Arrays.toString((byte[]) v));
+                else
+                    l.add(i + "=" + v);
+            }
+        }
+        return l;
+    }
+}